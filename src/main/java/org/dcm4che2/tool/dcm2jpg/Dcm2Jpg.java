@@ -48,13 +48,18 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.IIOException;
-import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageWriteParam;
@@ -62,7 +67,6 @@ import javax.imageio.ImageWriter;
 import javax.imageio.spi.ImageWriterSpi;
 import javax.imageio.spi.ServiceRegistry;
 import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.ImageOutputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -71,15 +75,11 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
 import org.dcm4che2.imageio.plugins.dcm.DicomImageReadParam;
 import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.util.CloseUtils;
 
-import com.sun.image.codec.jpeg.ImageFormatException;
-import com.sun.image.codec.jpeg.JPEGCodec;
-import com.sun.image.codec.jpeg.JPEGEncodeParam;
-import com.sun.image.codec.jpeg.JPEGImageEncoder;
-
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  * @version $Revision$ $Date$
@@ -109,6 +109,17 @@ public class Dcm2Jpg {
     private Float imageQuality;
     private String imageWriterClassname;
     private int maxSize = -1;
+    private boolean subsampling = true;
+    private volatile ImageEncoder encoder;
+    private boolean customEncoder = false;
+    private int threads = 1;
+    private final ThreadLocal<ImageReader> readers = new ThreadLocal<ImageReader>() {
+
+        @Override
+        protected ImageReader initialValue() {
+            return ImageIO.getImageReadersByFormatName("DICOM").next();
+        }
+    };
 
     private void setFrameNumber(int frame) {
         this.frame = frame;
@@ -122,6 +133,29 @@ public class Dcm2Jpg {
         this.maxSize = maxSize;
     }
 
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads converting the files of a directory tree in mconvert(). 1 by default.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads < 1 ? 1 : threads;
+    }
+
+    public boolean isSubsampling() {
+        return subsampling;
+    }
+
+    /**
+     * When the image is resized, decodes only a subset of the pixels (source subsampling) instead of the full
+     * resolution image. Enabled by default.
+     */
+    public void setSubsampling(boolean subsampling) {
+        this.subsampling = subsampling;
+    }
+
     private void setWindowCenter(float center) {
         this.center = center;
     }
@@ -152,29 +186,28 @@ public class Dcm2Jpg {
 
     private void setImageWriter(String imagewriter) {
         this.imageWriterClassname = imagewriter;
+        resetDefaultEncoder();
     }
 
     public void setFormatName(String formatName) {
         this.formatName = formatName;
+        resetDefaultEncoder();
     }
 
     public void setImageQuality(int quality) {
         this.imageQuality = new Float(quality / 100f);
+        resetDefaultEncoder();
     }
 
-    private ImageWriter getImageWriter(String imageWriterClass) throws IIOException {
-        ImageWriter writer;
-        for (Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(formatName); it.hasNext();) {
-            writer = it.next();
-            if ("*".equals(imageWriterClass) || writer.getClass().getName().equals(imageWriterClass)) {
-                return writer;
-            }
+    private void resetDefaultEncoder() {
+        if (!customEncoder) {
+            encoder = null;
         }
-        throw new IIOException("No such ImageWriter - " + imageWriterClass);
     }
 
     public void setCompressionType(String compressionType) {
         this.compressionType = compressionType;
+        resetDefaultEncoder();
     }
 
     /**
@@ -186,108 +219,213 @@ public class Dcm2Jpg {
      * @throws IOException
      */
     public void convert(File src, File dest) throws IOException {
-        Iterator<ImageReader> iter = ImageIO.getImageReadersByFormatName("DICOM");
-        ImageReader reader = iter.next();
-        DicomImageReadParam param = (DicomImageReadParam) reader.getDefaultReadParam();
-        param.setWindowCenter(center);
-        param.setWindowWidth(width);
-        param.setVoiLutFunction(vlutFct);
-        param.setPresentationState(prState);
-        param.setPValue2Gray(pval2gray);
-        param.setAutoWindowing(autoWindowing);
+        // Decode before opening the destination, an existing file is kept when the source cannot be read
+        BufferedImage bi = decode(src);
+        if (bi != null) {
+            writeImage(bi, dest);
+        }
+    }
+
+    /**
+     * Convert DICOM to the output stream (e.g. in memory or a HTTP response). The stream is not closed.
+     */
+    public void convert(File src, OutputStream out) throws IOException {
+        BufferedImage bi = decode(src);
+        if (bi != null) {
+            writeImage(bi, out);
+        }
+    }
+
+    /**
+     * @return the decoded and resized image, or null if the file has no image
+     */
+    private BufferedImage decode(File src) throws IOException {
         ImageInputStream iis = ImageIO.createImageInputStream(src);
-        BufferedImage bi;
+        ImageReader reader = null;
         try {
-            reader.setInput(iis, false);
-            bi = reader.read(frame - 1, param);
+            reader = getImageReader(iis);
+            BufferedImage bi = readImage(reader);
             if (bi == null) {
                 System.out.println("\nError: " + src + " - couldn't read!");
-                return;
+                return null;
             }
             if (maxSize > 15) {
                 bi = resize(bi, maxSize);
             }
-            if (imageWriterClassname == null) {
-                encodeByJPEGEncoder(bi, dest);
-            } else {
-                encodeByImageIO(bi, dest);
-            }
+            return bi;
         } finally {
+            releaseImageReader(reader);
             CloseUtils.safeClose(iis);
         }
+    }
+
+    /**
+     * Returns a DICOM image reader on the input stream. The header is read lazily, so the image size can be read before
+     * decoding the pixel data.
+     */
+    public ImageReader getImageReader(ImageInputStream iis) {
+        // The reader is reused by the same thread, it must be released by releaseImageReader()
+        ImageReader reader = readers.get();
+        reader.setInput(iis, false);
+        return reader;
+    }
+
+    /**
+     * Resets the reader returned by {@link #getImageReader(ImageInputStream)} for reading the next image. The reader is
+     * not disposed, it is reused by the next conversion of the current thread.
+     */
+    public void releaseImageReader(ImageReader reader) {
+        if (reader != null) {
+            reader.reset();
+        }
+    }
+
+    /**
+     * Decodes the selected frame with the display parameters (windowing, presentation state...).
+     */
+    public BufferedImage readImage(ImageReader reader) throws IOException {
+        return readImage(reader, frame - 1);
+    }
+
+    /**
+     * Decodes a frame with the display parameters (windowing, presentation state...). The reader seeks to the frame,
+     * for encapsulated pixel data only the fragments of this frame are read.
+     * 
+     * @param frameIndex
+     *            the index of the frame, starting at 0
+     */
+    public BufferedImage readImage(ImageReader reader, int frameIndex) throws IOException {
+        DicomImageReadParam param = (DicomImageReadParam) reader.getDefaultReadParam();
+        param.setWindowCenter(center);
+        param.setWindowWidth(width);
+        param.setVoiLutFunction(vlutFct);
+        param.setPresentationState(prState);
+        param.setPValue2Gray(pval2gray);
+        param.setAutoWindowing(autoWindowing);
+        int step = getSubsamplingStep(reader, frameIndex);
+        if (step > 1) {
+            param.setSourceSubsampling(step, step, 0, 0);
+        }
+        return reader.read(frameIndex, param);
+    }
+
+    /**
+     * Returns the source subsampling applied when decoding an image which is resized to maxSize. The decoded image
+     * keeps twice the target size, the final downscale averages the pixels.
+     * 
+     * @return the subsampling step in both directions, 1 when the image is decoded at full resolution
+     */
+    public int getSubsamplingStep(ImageReader reader) throws IOException {
+        return getSubsamplingStep(reader, frame - 1);
+    }
+
+    public int getSubsamplingStep(ImageReader reader, int frameIndex) throws IOException {
+        if (!subsampling || maxSize <= 15) {
+            return 1;
+        }
+        int size = Math.max(reader.getWidth(frameIndex), reader.getHeight(frameIndex));
+        return Math.max(1, size / (2 * maxSize));
+    }
 
+    /**
+     * Returns a key of all the parameters changing the rendering of an image. Two conversions of the same image with
+     * the same key produce the same result.
+     */
+    public String getRenderKey() {
+        StringBuffer buf = new StringBuffer();
+        buf.append(frame).append('|').append(center).append('|').append(width).append('|').append(vlutFct);
+        buf.append('|').append(autoWindowing).append('|');
+        buf.append(prState == null ? null : prState.getString(Tag.SOPInstanceUID)).append('|');
+        buf.append(pval2gray == null ? 0 : Arrays.hashCode(pval2gray)).append('|');
+        buf.append(maxSize).append('|').append(subsampling).append('|').append(getEncoder().getParameters());
+        return buf.toString();
     }
 
     public static BufferedImage resize(BufferedImage img, int maxSize) {
         int w = img.getWidth();
         int h = img.getHeight();
         final double scale = Math.min(maxSize / (double) h, maxSize / (double) w);
-        BufferedImage dimg =
-            dimg = new BufferedImage((int) Math.round(w * scale), (int) Math.round(h * scale), img.getType());
+        int width = (int) Math.round(w * scale);
+        int height = (int) Math.round(h * scale);
+        BufferedImage dimg = img;
+        // Halve the image while it is twice larger than the target: each step averages 2x2 pixels, whereas a single
+        // bilinear step from a large image skips most of the pixels.
+        while (dimg.getWidth() / 2 >= width && dimg.getHeight() / 2 >= height) {
+            dimg = scale(dimg, dimg.getWidth() / 2, dimg.getHeight() / 2);
+        }
+        if (dimg.getWidth() != width || dimg.getHeight() != height) {
+            dimg = scale(dimg, width, height);
+        }
+        return dimg;
+    }
+
+    private static BufferedImage scale(BufferedImage img, int width, int height) {
+        int type = img.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_RGB : img.getType();
+        BufferedImage dimg = new BufferedImage(width, height, type);
         Graphics2D g = dimg.createGraphics();
         g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        g.drawImage(img, 0, 0, dimg.getWidth(), dimg.getHeight(), 0, 0, w, h, null);
+        g.drawImage(img, 0, 0, width, height, 0, 0, img.getWidth(), img.getHeight(), null);
         g.dispose();
         return dimg;
     }
 
-    private void encodeByJPEGEncoder(BufferedImage bi, File dest) throws ImageFormatException, IOException {
+    /**
+     * Encodes the image to the destination file.
+     */
+    public void writeImage(BufferedImage bi, File dest) throws IOException {
         OutputStream out = null;
+        boolean written = false;
         try {
             out = new BufferedOutputStream(new FileOutputStream(dest));
-            JPEGImageEncoder enc = JPEGCodec.createJPEGEncoder(out);
-            if (imageQuality != null) {
-                JPEGEncodeParam param = JPEGCodec.getDefaultJPEGEncodeParam(bi);
-                param.setQuality(imageQuality, true);
-                enc.setJPEGEncodeParam(param);
-            }
-            enc.encode(bi);
+            writeImage(bi, out);
+            written = true;
         } finally {
             CloseUtils.safeClose(out);
+            if (!written) {
+                // Do not leave a truncated image
+                dest.delete();
+            }
         }
     }
 
-    private void encodeByImageIO(BufferedImage bi, File dest) throws IOException {
-        ImageWriter writer = getImageWriter(imageWriterClassname);
-        ImageOutputStream out = null;
-        try {
-            out = ImageIO.createImageOutputStream(dest);
-            writer.setOutput(out);
-            ImageWriteParam iwparam = writer.getDefaultWriteParam();
-            if (iwparam.canWriteCompressed()) {
-                iwparam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                String[] compressionTypes = iwparam.getCompressionTypes();
-                if (compressionTypes != null && compressionTypes.length > 0) {
-                    if (compressionType != null || iwparam.getCompressionType() == null) {
-                        for (int i = 0; i < compressionTypes.length; i++) {
-                            if (compressionType == null
-                                || compressionTypes[i].compareToIgnoreCase(compressionType) == 0) {
-                                iwparam.setCompressionType(compressionTypes[i]);
-                                break;
-                            }
-                        }
-                    }
-                }
-                if (imageQuality != null) {
-                    iwparam.setCompressionQuality(imageQuality);
-                }
-            } else if (imageQuality != null) {
-                System.out.println("Selected Image Writer can not compress! imageQuality is ignored!");
-            }
-            writer.write(null, new IIOImage(bi, null, null), iwparam);
-        } finally {
-            CloseUtils.safeClose(out);
-            writer.dispose();
+    /**
+     * Encodes the image to the output stream (e.g. in memory or a HTTP response). The stream is not closed.
+     */
+    public void writeImage(BufferedImage bi, OutputStream out) throws IOException {
+        getEncoder().encode(bi, out);
+        out.flush();
+    }
+
+    /**
+     * Returns the encoder set by {@link #setEncoder(ImageEncoder)} or, by default, an ImageIO encoder built from the
+     * format name, the image writer, the compression type and the image quality.
+     */
+    public ImageEncoder getEncoder() {
+        ImageEncoder e = encoder;
+        if (e == null) {
+            e = new ImageIOEncoder(formatName, imageWriterClassname, compressionType, imageQuality, false);
+            encoder = e;
         }
+        return e;
+    }
+
+    /**
+     * Sets the encoder of the converted images, e.g. ImageIOEncoder.createJPEGEncoder(Preset.ARCHIVAL). Null restores
+     * the default encoder.
+     */
+    public void setEncoder(ImageEncoder encoder) {
+        this.encoder = encoder;
+        this.customEncoder = encoder != null;
     }
 
     public int mconvert(List<String> args, int optind, File destDir) throws IOException {
+        List<File[]> jobs = threads > 1 ? new ArrayList<File[]>() : null;
         int count = 0;
         for (int i = optind, n = args.size() - 1; i < n; ++i) {
             File src = new File(args.get(i));
-            count += mconvert(src, new File(destDir, src2dest(src)));
+            count += mconvert(src, new File(destDir, src2dest(src)), jobs);
         }
-        return count;
+        return jobs == null ? count : convert(jobs);
     }
 
     private String src2dest(File src) {
@@ -296,20 +434,28 @@ public class Dcm2Jpg {
     }
 
     public int mconvert(File src, File dest) throws IOException {
+        if (threads > 1) {
+            List<File[]> jobs = new ArrayList<File[]>();
+            mconvert(src, dest, jobs);
+            return convert(jobs);
+        }
+        return mconvert(src, dest, null);
+    }
+
+    /**
+     * Converts the files or, when jobs is not null, only adds them to the jobs.
+     */
+    private int mconvert(File src, File dest, List<File[]> jobs) throws IOException {
         if (!src.exists()) {
             System.err.println("WARNING: No such file or directory: " + src + " - skipped.");
             return 0;
         }
         if (src.isFile()) {
-            try {
-                convert(src, dest);
-            } catch (Exception e) {
-                System.err.println("WARNING: Failed to convert " + src + ":");
-                e.printStackTrace(System.err);
-                System.out.print('F');
+            if (jobs != null) {
+                jobs.add(new File[] { src, dest });
                 return 0;
             }
-            return 1;
+            return safeConvert(src, dest) ? 1 : 0;
         }
         File[] files = src.listFiles();
         if (files.length > 0 && !dest.exists()) {
@@ -317,11 +463,52 @@ public class Dcm2Jpg {
         }
         int count = 0;
         for (int i = 0; i < files.length; ++i) {
-            count += mconvert(files[i], new File(dest, src2dest(files[i])));
+            count += mconvert(files[i], new File(dest, src2dest(files[i])), jobs);
         }
         return count;
     }
 
+    private boolean safeConvert(File src, File dest) {
+        try {
+            convert(src, dest);
+        } catch (Exception e) {
+            System.err.println("WARNING: Failed to convert " + src + ":");
+            e.printStackTrace(System.err);
+            System.out.print('F');
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Converts the files with a pool of threads, each thread reuses its own reader and writer.
+     * 
+     * @return the number of converted files
+     */
+    private int convert(List<File[]> jobs) throws IOException {
+        final AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final File[] job : jobs) {
+                executor.execute(new Runnable() {
+
+                    public void run() {
+                        if (safeConvert(job[0], job[1])) {
+                            count.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Conversion interrupted");
+        }
+        return count.get();
+    }
+
     @SuppressWarnings("unchecked")
     public static void main(String args[]) throws Exception {
         CommandLine cl = parse(args);
@@ -343,6 +530,10 @@ public class Dcm2Jpg {
             dcm2jpg.setWindowWidth(parseFloat(cl.getOptionValue("w"), "illegal argument of option -w"));
         }
 
+        if (cl.hasOption("t")) {
+            dcm2jpg.setThreads(parseInt(cl.getOptionValue("t"), "illegal argument of option -t", 1, 256));
+        }
+
         if (cl.hasOption("q")) {
             dcm2jpg.setImageQuality(parseInt(cl.getOptionValue("q"), "illegal argument of option -q", 0, 100));
         }
@@ -364,6 +555,17 @@ public class Dcm2Jpg {
             dcm2jpg.setImageWriter(cl.getOptionValue("imagewriter"));
         }
 
+        if (cl.hasOption("preset")) {
+            String preset = cl.getOptionValue("preset");
+            if ("fast".equalsIgnoreCase(preset)) {
+                dcm2jpg.setEncoder(ImageIOEncoder.createJPEGEncoder(ImageIOEncoder.Preset.FAST_PREVIEW));
+            } else if ("archival".equalsIgnoreCase(preset)) {
+                dcm2jpg.setEncoder(ImageIOEncoder.createJPEGEncoder(ImageIOEncoder.Preset.ARCHIVAL));
+            } else {
+                exit("illegal argument of option -preset");
+            }
+        }
+
         if (cl.hasOption("sigmoid")) {
             dcm2jpg.setVoiLutFunction(DicomImageReadParam.SIGMOID);
         }
@@ -399,7 +601,9 @@ public class Dcm2Jpg {
             dcm2jpg.convert(src, dest);
         }
         long t2 = System.currentTimeMillis();
-        System.out.println("\nconverted " + count + " files in " + (t2 - t1) / 1000f + " s.");
+        float time = (t2 - t1) / 1000f;
+        System.out.println("\nconverted " + count + " files in " + time + " s ("
+            + (time > 0 ? count / time : count) + " images/s).");
     }
 
     private void showImageWriters() {
@@ -501,6 +705,11 @@ public class Dcm2Jpg {
         OptionBuilder.withDescription("frame to convert, 1 (= first frame) by default");
         opts.addOption(OptionBuilder.create("f"));
 
+        OptionBuilder.withArgName("threads");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("number of threads converting the files of directories, 1 by default");
+        opts.addOption(OptionBuilder.create("t"));
+
         OptionBuilder.withArgName("imagequality");
         OptionBuilder.hasArg();
         OptionBuilder.withDescription("JPEG Image Quality (0-100)");
@@ -509,8 +718,12 @@ public class Dcm2Jpg {
         OptionBuilder.withArgName("ImageWriterClass");
         OptionBuilder.hasArg();
         OptionBuilder
-            .withDescription("ImageWriter to be used [Default: JPEGImageEncoder instead of imageIO]. Use * to choose the first ImageIO Writer found for given image format");
+            .withDescription("ImageWriter class used by the ImageIO encoder [Default: *, the first ImageIO Writer found for given image format]. Ignored with -preset, which uses the first JPEG Writer");
         opts.addOption(OptionBuilder.create("imagewriter"));
+        OptionBuilder.withArgName("fast|archival");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("JPEG encoding preset: fast preview or archival quality (overrides -q, -F and -imagewriter)");
+        opts.addOption(OptionBuilder.create("preset"));
         opts.addOption("S", "showFormats", false, "Show all supported format names by registered ImageWriters.");
         opts.addOption("s", "showimagewriter", false, "Show all available Image Writer for specified format name.");
 
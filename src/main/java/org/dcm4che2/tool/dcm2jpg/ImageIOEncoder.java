@@ -0,0 +1,198 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at http://sourceforge.net/projects/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Gunter Zeilinger, Huetteldorferstr. 24/10, 1150 Vienna/Austria/Europe.
+ * Portions created by the Initial Developer are Copyright (C) 2002-2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See listed authors below.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che2.tool.dcm2jpg;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.dcm4che2.util.CloseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encodes the images with an ImageIO writer. The writer is instantiated once per thread and reused for the next
+ * images. The output stream is wrapped in a memory cache stream, so no temporary file is created by ImageIO.
+ */
+public class ImageIOEncoder implements ImageEncoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImageIOEncoder.class);
+
+    /**
+     * JPEG presets: FAST_PREVIEW for thumbnails and previews, ARCHIVAL for a higher quality with optimized Huffman
+     * tables (smaller files but slower encoding).
+     */
+    public enum Preset {
+        FAST_PREVIEW(0.75f, false), ARCHIVAL(0.95f, true);
+
+        private final float quality;
+        private final boolean optimizeHuffman;
+
+        private Preset(float quality, boolean optimizeHuffman) {
+            this.quality = quality;
+            this.optimizeHuffman = optimizeHuffman;
+        }
+
+        public float getQuality() {
+            return quality;
+        }
+
+        public boolean isOptimizeHuffman() {
+            return optimizeHuffman;
+        }
+    }
+
+    private final String formatName;
+    private final String imageWriterClassname;
+    private final String compressionType;
+    private final Float quality;
+    private final boolean optimizeHuffman;
+    private final ThreadLocal<ImageWriter> writers = new ThreadLocal<ImageWriter>();
+    // The warning about the ignored quality is logged once, not for each image
+    private volatile boolean qualityIgnoredLogged = false;
+
+    /**
+     * @param formatName
+     *            the format name of the ImageIO writer (e.g. JPEG, PNG)
+     * @param imageWriterClassname
+     *            the class of the writer or "*" for the first writer of the format
+     * @param compressionType
+     *            the compression type or null for the default one
+     * @param quality
+     *            the compression quality between 0 and 1, null for the default one
+     * @param optimizeHuffman
+     *            true for optimizing the Huffman tables of JPEG images
+     */
+    public ImageIOEncoder(String formatName, String imageWriterClassname, String compressionType, Float quality,
+        boolean optimizeHuffman) {
+        if (formatName == null) {
+            throw new IllegalArgumentException("formatName cannot be null!");
+        }
+        this.formatName = formatName;
+        this.imageWriterClassname = imageWriterClassname == null ? "*" : imageWriterClassname;
+        this.compressionType = compressionType;
+        this.quality = quality;
+        this.optimizeHuffman = optimizeHuffman;
+    }
+
+    public static ImageIOEncoder createJPEGEncoder(Preset preset) {
+        return new ImageIOEncoder("JPEG", "*", "jpeg", preset.getQuality(), preset.isOptimizeHuffman());
+    }
+
+    public String getParameters() {
+        return formatName + ',' + imageWriterClassname + ',' + compressionType + ',' + quality + ','
+            + optimizeHuffman;
+    }
+
+    private ImageWriter getImageWriter() throws IIOException {
+        ImageWriter writer = writers.get();
+        if (writer != null) {
+            return writer;
+        }
+        for (Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(formatName); it.hasNext();) {
+            writer = it.next();
+            if ("*".equals(imageWriterClassname) || writer.getClass().getName().equals(imageWriterClassname)) {
+                writers.set(writer);
+                return writer;
+            }
+        }
+        throw new IIOException("No such ImageWriter - " + imageWriterClassname);
+    }
+
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        ImageWriter writer = getImageWriter();
+        ImageOutputStream ios = null;
+        try {
+            ios = new MemoryCacheImageOutputStream(out);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), getWriteParam(writer));
+            ios.flush();
+        } finally {
+            // Reused by the next image of the current thread
+            writer.reset();
+            if (ios != null) {
+                // Closing the ImageOutputStream does not close the underlying stream
+                CloseUtils.safeClose(ios);
+            }
+        }
+    }
+
+    private ImageWriteParam getWriteParam(ImageWriter writer) {
+        ImageWriteParam iwparam = writer.getDefaultWriteParam();
+        if (iwparam.canWriteCompressed()) {
+            iwparam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            String[] compressionTypes = iwparam.getCompressionTypes();
+            if (compressionTypes != null && compressionTypes.length > 0) {
+                if (compressionType != null || iwparam.getCompressionType() == null) {
+                    for (int i = 0; i < compressionTypes.length; i++) {
+                        if (compressionType == null || compressionTypes[i].compareToIgnoreCase(compressionType) == 0) {
+                            iwparam.setCompressionType(compressionTypes[i]);
+                            break;
+                        }
+                    }
+                }
+            }
+            if (quality != null) {
+                iwparam.setCompressionQuality(quality);
+            }
+        } else if (quality != null && !qualityIgnoredLogged) {
+            qualityIgnoredLogged = true;
+            LOG.warn("Image Writer {} cannot compress, the image quality is ignored", writer.getClass().getName());
+        }
+        if (optimizeHuffman && iwparam instanceof JPEGImageWriteParam) {
+            ((JPEGImageWriteParam) iwparam).setOptimizeHuffmanTables(true);
+        }
+        return iwparam;
+    }
+
+    @Override
+    public String toString() {
+        return getParameters();
+    }
+}
@@ -48,6 +48,8 @@ import java.security.KeyStore;
 import java.util.List;
 import java.util.concurrent.Executor;
 
+import javax.net.ssl.SSLContext;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -569,6 +571,14 @@ public class DcmEcho {
         System.exit(1);
     }
 
+    /**
+     * Uses an SSL context already initialized instead of {@link #initTLS()}, the key stores are not loaded again and
+     * the TLS sessions of the context can be resumed.
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        device.setSSLContext(sslContext);
+    }
+
     public void initTLS() throws GeneralSecurityException, IOException {
         KeyStore keyStore = loadKeyStore(keyStoreURL, keyStorePassword);
         KeyStore trustStore = loadKeyStore(trustStoreURL, trustStorePassword);
@@ -3,6 +3,7 @@ package org.dcm4che2.tool.dcmmover;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -41,6 +42,8 @@ public class DcmMover {
 
     private boolean abortingQR;
 
+    private boolean passthrough = true;
+
     private MoveResponseImpl studyMoveResponse;
 
     public DcmMover(boolean generateNewUIDs) {
@@ -136,6 +139,28 @@ public class DcmMover {
         dcmRcv.setPort(port);
     }
 
+    /**
+     * Set the number of bytes of the received objects kept in memory until they are sent. Beyond this budget, the
+     * received objects are written to temporary files.
+     * 
+     * @param bytes
+     *            the memory budget, 64 MB by default, 0 for always writing the objects to files.
+     */
+    public void setReceiveMemoryBudget(long bytes) {
+        dcmRcv.getReceiveBuffer().setMemoryBudget(bytes);
+    }
+
+    /**
+     * Set the number of bytes of the temporary files from which the receive SCP waits for the objects to be sent
+     * before accepting the next one, which slows down the C-MOVE SCP.
+     * 
+     * @param bytes
+     *            the disk budget, 0 (default) for unlimited.
+     */
+    public void setReceiveDiskBudget(long bytes) {
+        dcmRcv.getReceiveBuffer().setDiskBudget(bytes);
+    }
+
     /**
      * Set the mover's send SCU called AET. (The AET of the receive SCP)
      * 
@@ -172,6 +197,39 @@ public class DcmMover {
         dcmSnd.setRemoteHost(host);
     }
 
+    /**
+     * Set the maximum number of outstanding C-STORE requests of the mover's send SCU. 1 (default) waits for the
+     * response of each object before sending the next one.
+     * 
+     * @param maxOps
+     *            the window size proposed to the receive SCP, 0 for unlimited. Ignored with storage commitment.
+     */
+    public void setSendSCUMaxOpsInvoked(int maxOps) {
+        dcmSnd.setMaxOpsInvoked(maxOps);
+    }
+
+    /**
+     * Set the number of threads transforming and sending the received objects. Each thread sends on its own
+     * association to the move destination.
+     * 
+     * @param workers
+     *            the number of threads, 1 by default. Ignored with storage commitment.
+     */
+    public void setTransformSendWorkers(int workers) {
+        dcmTransform.setWorkers(workers);
+    }
+
+    /**
+     * Set whether the received objects are forwarded without parsing them when the study is not transformed. An object
+     * is parsed and encoded again only when its transfer syntax is not accepted by the receive SCP.
+     * 
+     * @param passthrough
+     *            true (default) for forwarding the received datasets unchanged.
+     */
+    public void setPassthrough(boolean passthrough) {
+        this.passthrough = passthrough;
+    }
+
     public void setStorageCommitment(boolean stgcmt) {
         dcmSnd.setStorageCommitment(stgcmt);
     }
@@ -275,6 +333,7 @@ public class DcmMover {
 
         // Start the send scu
         log.debug(fn + "Starting the Dicom Sender (Store SCU)");
+        dcmSnd.setPassthrough(passthrough && xformObjectData == null);
         try {
             dcmSnd.start();
         } catch (IOException e) {
@@ -325,6 +384,27 @@ public class DcmMover {
         return dcmQR.getTotalFound();
     }
 
+    /**
+     * @return the number of received objects waiting to be sent
+     */
+    public int getReceiveQueueDepth() {
+        return dcmRcv.getQueueDepth();
+    }
+
+    /**
+     * @return the number of bytes of the received objects waiting in memory
+     */
+    public long getReceiveBytesInMemory() {
+        return dcmRcv.getReceiveBuffer().getBytesInMemory();
+    }
+
+    /**
+     * @return the number of bytes of the received objects waiting in temporary files
+     */
+    public long getReceiveBytesSpilled() {
+        return dcmRcv.getReceiveBuffer().getBytesSpilled();
+    }
+
     private void initStudyMoveResponse(String studyUid, boolean transforming) {
         studyMoveResponse = new MoveResponseImpl(studyUid, dcmQR.getRemoteAE(), dcmSnd.getCalledAET(), transforming);
     }
@@ -336,9 +416,23 @@ public class DcmMover {
         studyMoveResponse.setNumberOfFoundStudyObjects(getNumberOfFoundStudyObjects());
         studyMoveResponse.setNumberOfRetrievedStudyObjects(dcmQR.getTotalRetrieved());
         studyMoveResponse.setNumberOfReceivedStudyObjects(dcmRcv.getTotalReceived());
+        ReceiveBuffer receiveBuffer = dcmRcv.getReceiveBuffer();
+        studyMoveResponse.setReceiveBufferStatistics(receiveBuffer.getNumberOfSpilledObjects(),
+            receiveBuffer.getTotalBytesSpilled(), receiveBuffer.getPeakBytesInMemory(),
+            receiveBuffer.getBackPressureTime());
         studyMoveResponse.setNumberOfTransformedStudyObjects(dcmTransform.getTotalTransformed());
         studyMoveResponse.setNumberOfSentStudyObjects(dcmSnd.getTotalSent());
+        studyMoveResponse.setNumberOfPassthroughStudyObjects(dcmSnd.getTotalPassedThrough());
         studyMoveResponse.setNumberOfMovedStudyObjects(getNumberOfMovedStudyObjects());
+        studyMoveResponse.setNumberOfSendAssociations(dcmSnd.getNumberOfAssociations());
+        List<DcmSnd.Sender> senders = dcmSnd.getSenders();
+        int[] sentPerWorker = new int[senders.size()];
+        float[] throughputPerWorker = new float[senders.size()];
+        for (int i = 0; i < sentPerWorker.length; i++) {
+            sentPerWorker[i] = senders.get(i).getTotalSent();
+            throughputPerWorker[i] = senders.get(i).getObjectsPerSecond();
+        }
+        studyMoveResponse.setWorkerStatistics(sentPerWorker, throughputPerWorker);
 
         if (null == error) {
             studyMoveResponse.setMoveSuccessful();
@@ -420,6 +514,13 @@ public class DcmMover {
                     }
                 }
                 break;
+            case MoveEvents.STUDY_OBJECT_STORE_FAILED:
+                log.debug(fn + "Handling a STUDY_OBJECT_STORE_FAILED event");
+                if (StudyObjectMoveEvent.class.isInstance(e)) {
+                    MovedDicomObject obj = ((StudyObjectMoveEvent) e).getMovedDicomObject();
+                    studyMoveResponse.setStoreFailedReason(obj.getInstanceUid(), obj.getStoreFailedReason());
+                }
+                break;
             case MoveEvents.STUDY_OBJECT_MOVED:
                 log.debug(fn + "Handling a STUDY_OBJECT_MOVED event");
                 break;
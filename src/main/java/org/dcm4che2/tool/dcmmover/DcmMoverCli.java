@@ -126,6 +126,33 @@ public class DcmMoverCli {
             + "specify the address and port of a separate association to receive commitment on.");
         opts.addOption(OptionBuilder.create("stgcmt"));
 
+        OptionBuilder.withArgName("maxops");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("(STORE SCU) Maximum number of outstanding C-STORE requests, 0 for unlimited, "
+            + "1 (wait for each response) by default. Ignored with storage commitment.");
+        opts.addOption(OptionBuilder.create("async"));
+
+        OptionBuilder.withArgName("num");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("(STORE SCU) Number of threads transforming and sending the objects, each one "
+            + "with its own association, 1 by default. Ignored with storage commitment.");
+        opts.addOption(OptionBuilder.create("workers"));
+
+        OptionBuilder.withArgName("MB");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("(STORE SCP) Size of the received objects kept in memory until they are sent, "
+            + "64 MB by default. Beyond it the objects are written to temporary files.");
+        opts.addOption(OptionBuilder.create("rcvmem"));
+
+        OptionBuilder.withArgName("MB");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("(STORE SCP) Size of the temporary files from which the reception waits for "
+            + "the sender, unlimited by default.");
+        opts.addOption(OptionBuilder.create("rcvdisk"));
+
+        opts.addOption("nopassthrough", false, "Parse and encode again the received objects even if the study is not "
+            + "transformed. By default they are forwarded unchanged.");
+
         OptionBuilder.withArgName("ms");
         OptionBuilder.hasArg();
         OptionBuilder.withDescription("(QR SCU, STORE SCU) Timeout in ms for TCP connect, no timeout by default.");
@@ -282,6 +309,30 @@ public class DcmMoverCli {
             }
         }
 
+        if (cl.hasOption("async")) {
+            dcmMover.setSendSCUMaxOpsInvoked(parseInt(cl.getOptionValue("async"), "illegal argument of option -async",
+                0, 0xffff));
+        }
+
+        if (cl.hasOption("workers")) {
+            dcmMover.setTransformSendWorkers(parseInt(cl.getOptionValue("workers"),
+                "illegal argument of option -workers", 1, 64));
+        }
+
+        if (cl.hasOption("nopassthrough")) {
+            dcmMover.setPassthrough(false);
+        }
+
+        if (cl.hasOption("rcvmem")) {
+            dcmMover.setReceiveMemoryBudget(parseInt(cl.getOptionValue("rcvmem"), "illegal argument of option -rcvmem",
+                0, Integer.MAX_VALUE) * 1024L * 1024L);
+        }
+
+        if (cl.hasOption("rcvdisk")) {
+            dcmMover.setReceiveDiskBudget(parseInt(cl.getOptionValue("rcvdisk"),
+                "illegal argument of option -rcvdisk", 1, Integer.MAX_VALUE) * 1024L * 1024L);
+        }
+
         if (cl.hasOption("connectTO")) {
             dcmMover.setConnectTimeout(parseInt(cl.getOptionValue("connectTO"),
                 "illegal argument of option -connectTO", 1, Integer.MAX_VALUE));
@@ -2,11 +2,12 @@ package org.dcm4che2.tool.dcmmover;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 
@@ -15,7 +16,6 @@ import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.UID;
 import org.dcm4che2.data.UIDDictionary;
-import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.io.DicomOutputStream;
 import org.dcm4che2.net.Association;
 import org.dcm4che2.net.CommandUtils;
@@ -48,6 +48,8 @@ class DcmRcv extends StorageService {
 
     private BlockingQueue<MovedDicomObject> movedObjQueue;
 
+    private static final int CHUNK_SIZE = 64 * 1024;
+
     private static final String[] NON_RETIRED_LE_TS = { UID.JPEGLSLossless, UID.JPEGLossless,
         UID.JPEGLosslessNonHierarchical14, UID.JPEG2000LosslessOnly, UID.DeflatedExplicitVRLittleEndian,
         UID.RLELossless, UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian, UID.JPEGBaseline1, UID.JPEGExtended24,
@@ -103,6 +105,8 @@ class DcmRcv extends StorageService {
 
     private ActionListener moveActionListener;
 
+    private final ReceiveBuffer receiveBuffer = new ReceiveBuffer();
+
     public DcmRcv() {
         super(CUIDS);
         device.setNetworkApplicationEntity(ae);
@@ -190,16 +194,30 @@ class DcmRcv extends StorageService {
         return objectsReceived;
     }
 
+    public ReceiveBuffer getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    /**
+     * @return the number of received objects waiting to be sent
+     */
+    public int getQueueDepth() {
+        BlockingQueue<MovedDicomObject> queue = movedObjQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
     public void start(BlockingQueue<MovedDicomObject> objQueue) throws IOException {
         final String fn = "start: ";
 
         objectsReceived = 0;
+        receiveBuffer.reset();
         movedObjQueue = objQueue;
         device.startListening(executor);
         log.info(fn + "Started Server listening on port " + nc.getPort());
     }
 
     public void stop() {
+        receiveBuffer.close();
         device.stopListening();
     }
 
@@ -239,45 +257,85 @@ class DcmRcv extends StorageService {
         final String fn = "onCStoreRQ: ";
         log.debug(fn + "Handling a C-Store request. Adding the received DICOM object to the queue.");
 
-        MovedDicomObject movedDcmObj = null;
+        String cuid = rq.getString(Tag.AffectedSOPClassUID);
+        String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+        try {
+            receiveBuffer.waitForSpace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DicomServiceException(rq, Status.ProcessingFailure, "Interrupted while waiting for the sender");
+        }
+
+        // Keep the object in memory within the memory budget, otherwise spill it to a file. The chunks are kept as read,
+        // without copying them into a single array, so the memory used is the reserved bytes.
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int pos = 0;
+        long reserved = 0L;
+        int len;
+        while ((len = dataStream.read(chunk, pos, chunk.length - pos)) != -1) {
+            if (!receiveBuffer.reserveMemory(len)) {
+                break;
+            }
+            reserved += len;
+            pos += len;
+            if (pos == chunk.length) {
+                chunks.add(chunk);
+                chunk = new byte[CHUNK_SIZE];
+                pos = 0;
+            }
+        }
 
-        // Only keep in memory 5 files
-        if (movedObjQueue.size() > 5) {
-            String cuid = rq.getString(Tag.AffectedSOPClassUID);
-            String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+        MovedDicomObject movedDcmObj;
+        if (len == -1) {
+            if (pos > 0) {
+                byte[] last = new byte[pos];
+                System.arraycopy(chunk, 0, last, 0, pos);
+                chunks.add(last);
+            }
+            movedDcmObj = new MovedDicomObject(chunks, tsuid, cuid, iuid);
+            movedDcmObj.setReceiveBuffer(receiveBuffer, reserved);
+        } else {
             File file = new File(FileUtil.APP_TEMP_DIR, iuid + ".part");
+            long datasetOffset;
             try {
-                DicomOutputStream dos =
-                    new DicomOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024));
+                FileOutputStream fos = new FileOutputStream(file);
+                DicomOutputStream dos = new DicomOutputStream(new BufferedOutputStream(fos, 1024));
                 try {
                     BasicDicomObject fmi = new BasicDicomObject();
                     fmi.initFileMetaInformation(cuid, iuid, tsuid);
                     dos.writeFileMetaInformation(fmi);
+                    dos.flush();
+                    // Position of the dataset, which can be forwarded without parsing it
+                    datasetOffset = fos.getChannel().position();
+                    for (byte[] b : chunks) {
+                        dos.write(b);
+                    }
+                    // The current chunk and the bytes which have not been reserved
+                    dos.write(chunk, 0, pos + len);
                     dataStream.copyTo(dos);
                 } finally {
                     CloseUtils.safeClose(dos);
                 }
             } catch (IOException e) {
-                if (file != null) {
-                    file.delete();
-                }
+                file.delete();
                 throw new DicomServiceException(rq, Status.ProcessingFailure, e.getMessage());
+            } finally {
+                receiveBuffer.releaseMemory(reserved);
             }
 
             // Rename the file after it has been written.
-            if (file != null) {
-                File rename = new File(file.getParent(), iuid);
-                movedDcmObj = new MovedDicomObject(file.renameTo(rename) ? rename : file, tsuid, cuid, iuid);
-            }
-        } else {
-            DicomInputStream dis = new DicomInputStream(new BufferedInputStream(dataStream), tsuid);
-            movedDcmObj = new MovedDicomObject(dis.readDicomObject(), tsuid);
-        }
-        if (movedDcmObj != null) {
-            objectsReceived++;
-            fireStudyObjectReceivedEvent(movedDcmObj);
-            movedObjQueue.add(movedDcmObj);
+            File rename = new File(file.getParent(), iuid);
+            movedDcmObj = new MovedDicomObject(file.renameTo(rename) ? rename : file, tsuid, cuid, iuid);
+            movedDcmObj.setDatasetOffset(datasetOffset);
+            long size = movedDcmObj.getFile().length();
+            receiveBuffer.addSpilled(size);
+            movedDcmObj.setReceiveBuffer(receiveBuffer, size);
+            log.debug(fn + "Spilled " + iuid + " to disk (" + size + " bytes)");
         }
+        objectsReceived++;
+        fireStudyObjectReceivedEvent(movedDcmObj);
+        movedObjQueue.add(movedDcmObj);
     }
 
     public void logConfiguration(StringBuffer str) {
@@ -3,11 +3,15 @@ package org.dcm4che2.tool.dcmmover;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomElement;
@@ -18,6 +22,7 @@ import org.dcm4che2.data.UIDDictionary;
 import org.dcm4che2.data.VR;
 import org.dcm4che2.net.Association;
 import org.dcm4che2.net.ConfigurationException;
+import org.dcm4che2.net.DataWriter;
 import org.dcm4che2.net.DataWriterAdapter;
 import org.dcm4che2.net.Device;
 import org.dcm4che2.net.DimseRSP;
@@ -26,6 +31,7 @@ import org.dcm4che2.net.NetworkApplicationEntity;
 import org.dcm4che2.net.NetworkConnection;
 import org.dcm4che2.net.NewThreadExecutor;
 import org.dcm4che2.net.NoPresentationContextException;
+import org.dcm4che2.net.PDVOutputStream;
 import org.dcm4che2.net.TransferCapability;
 import org.dcm4che2.net.UserIdentity;
 import org.dcm4che2.net.service.StorageCommitmentService;
@@ -68,11 +74,22 @@ class DcmSnd extends StorageCommitmentService {
 
     private HashMap<String, HashSet<String>> as2ts = new HashMap<String, HashSet<String>>();
 
-    private Association assoc;
+    // Version of the transfer capability from which each SOP class and transfer syntax is proposed
+    private final HashMap<String, Integer> tcVersions = new HashMap<String, Integer>();
+
+    private int tcVersion = 0;
+
+    private final List<Sender> senders = new ArrayList<Sender>();
 
     private int priority = 0;
 
-    private int objectsSent = 0;
+    private final AtomicInteger objectsSent = new AtomicInteger();
+
+    private int maxOpsInvoked = 1;
+
+    private boolean passthrough = false;
+
+    private final AtomicInteger objectsPassedThrough = new AtomicInteger();
 
     private long totalSize = 0L;
 
@@ -86,7 +103,7 @@ class DcmSnd extends StorageCommitmentService {
 
     private ActionListener moveActionListener;
 
-    private String storeResponseError;
+    private final AtomicInteger associationsOpened = new AtomicInteger();
 
     public DcmSnd() {
         remoteAE.setInstalled(true);
@@ -157,8 +174,41 @@ class DcmSnd extends StorageCommitmentService {
         ae.setMaxPDULengthReceive(maxPDULength);
     }
 
+    /**
+     * Sets the maximum number of outstanding C-STORE requests proposed to the remote AE (0 means unlimited). With a
+     * value other than 1, the objects are sent without waiting for the response of the previous ones (window of the
+     * negotiated value), except when storage commitment is requested.
+     */
     public final void setMaxOpsInvoked(int maxOpsInvoked) {
         ae.setMaxOpsInvoked(maxOpsInvoked);
+        this.maxOpsInvoked = maxOpsInvoked;
+    }
+
+    public final int getMaxOpsInvoked() {
+        return maxOpsInvoked;
+    }
+
+    /**
+     * Sends the datasets as received, without parsing and encoding them again, when the transfer syntax of the object
+     * is accepted by the remote AE. The objects must not be modified after their reception.
+     */
+    public final void setPassthrough(boolean passthrough) {
+        this.passthrough = passthrough;
+    }
+
+    public final boolean isPassthrough() {
+        return passthrough;
+    }
+
+    /**
+     * @return the number of objects stored successfully without parsing their dataset since {@link #start()}
+     */
+    public final int getTotalPassedThrough() {
+        return objectsPassedThrough.get();
+    }
+
+    private boolean isAsyncSend() {
+        return maxOpsInvoked != 1 && !stgcmt;
     }
 
     public final void setPackPDV(boolean packPDV) {
@@ -206,48 +256,98 @@ class DcmSnd extends StorageCommitmentService {
     }
 
     public final int getTotalSent() {
-        return objectsSent;
+        return objectsSent.get();
     }
 
     public final long getTotalSizeSent() {
         return totalSize;
     }
 
+    /**
+     * @return the number of associations opened to the destination since {@link #start()}
+     */
+    public final int getNumberOfAssociations() {
+        return associationsOpened.get();
+    }
+
     private synchronized DicomObject waitForStgCmtResult() throws InterruptedException {
         while (stgCmtResult == null)
             wait();
         return stgCmtResult;
     }
 
-    private void addTransferCapability(String cuid, String tsuid) {
-        HashSet<String> ts = as2ts.get(cuid);
-        if (ts == null) {
-            ts = new HashSet<String>();
-            ts.add(UID.ImplicitVRLittleEndian);
-            as2ts.put(cuid, ts);
+    /**
+     * Adds the SOP class and the transfer syntax to the transfer capability proposed by the next associations.
+     * 
+     * @return the version of the transfer capability from which the SOP class and the transfer syntax are proposed
+     */
+    private int addTransferCapability(String cuid, String tsuid) {
+        final String fn = "addTransferCapability: ";
+
+        synchronized (as2ts) {
+            Integer version = tcVersions.get(cuid + '\\' + tsuid);
+            if (version != null) {
+                return version.intValue();
+            }
+            ++tcVersion;
+            HashSet<String> ts = as2ts.get(cuid);
+            if (ts == null) {
+                ts = new HashSet<String>();
+                ts.add(UID.ImplicitVRLittleEndian);
+                as2ts.put(cuid, ts);
+                tcVersions.put(cuid + '\\' + UID.ImplicitVRLittleEndian, Integer.valueOf(tcVersion));
+            }
+            ts.add(tsuid);
+            tcVersions.put(cuid + '\\' + tsuid, Integer.valueOf(tcVersion));
+
+            if (log.isDebugEnabled()) {
+                log.debug(fn + "Adding moved object's transfer syntax to this SCU's capability. Class UID=["
+                        + UIDDictionary.getDictionary().nameOf(cuid) + "], Transfer Syntax UID=["
+                        + UIDDictionary.getDictionary().nameOf(tsuid) + "]");
+            }
+            configureTransferCapability();
+            if (log.isDebugEnabled()) {
+                StringBuffer str = new StringBuffer("Send SCU Transfer Capability:");
+                for (TransferCapability tc : ae.getTransferCapability()) {
+                    String sopClassName = UIDDictionary.getDictionary().nameOf(tc.getSopClass());
+                    str.append("\n\tSOP Class[" + sopClassName + "]  Transfer Syntaxes:");
+                    for (String xferSyntaxUid : tc.getTransferSyntax()) {
+                        str.append("\n\t\t" + UIDDictionary.getDictionary().nameOf(xferSyntaxUid));
+                    }
+                }
+                log.debug(fn + str.toString());
+            }
+            return tcVersion;
         }
-        ts.add(tsuid);
     }
 
     public void configureTransferCapability() {
-        int off = stgcmt ? 1 : 0;
-        TransferCapability[] tc = new TransferCapability[off + as2ts.size()];
-        if (stgcmt) {
-            tc[0] = new TransferCapability(UID.StorageCommitmentPushModelSOPClass, DcmMover.ONLY_IVRLE_TS, TransferCapability.SCU);
-        }
-        Iterator<Entry<String, HashSet<String>>> iter = as2ts.entrySet().iterator();
-        for (int i = off; i < tc.length; i++) {
-            Entry<String, HashSet<String>> e = iter.next();
-            String cuid = e.getKey();
-            HashSet<String> ts = e.getValue();
-            tc[i] = new TransferCapability(cuid, ts.toArray(new String[ts.size()]), TransferCapability.SCU);
+        synchronized (as2ts) {
+            int off = stgcmt ? 1 : 0;
+            TransferCapability[] tc = new TransferCapability[off + as2ts.size()];
+            if (stgcmt) {
+                tc[0] = new TransferCapability(UID.StorageCommitmentPushModelSOPClass, DcmMover.ONLY_IVRLE_TS, TransferCapability.SCU);
+            }
+            Iterator<Entry<String, HashSet<String>>> iter = as2ts.entrySet().iterator();
+            for (int i = off; i < tc.length; i++) {
+                Entry<String, HashSet<String>> e = iter.next();
+                String cuid = e.getKey();
+                HashSet<String> ts = e.getValue();
+                tc[i] = new TransferCapability(cuid, ts.toArray(new String[ts.size()]), TransferCapability.SCU);
+            }
+            ae.setTransferCapability(tc);
         }
-        ae.setTransferCapability(tc);
     }
 
     public void start() throws IOException {
         final String fn = "start: ";
 
+        associationsOpened.set(0);
+        objectsPassedThrough.set(0);
+        synchronized (senders) {
+            senders.clear();
+        }
+
         if (conn.isListening()) {
             conn.bind(executor);
 
@@ -258,6 +358,11 @@ class DcmSnd extends StorageCommitmentService {
     public void stop() {
         final String fn = "stop: ";
 
+        try {
+            close();
+        } catch (InterruptedException e) {
+            log.error(fn + "Exception while releasing the association.", e);
+        }
         if (conn.isListening()) {
             try {
                 Thread.sleep(shutdownDelay);
@@ -268,222 +373,516 @@ class DcmSnd extends StorageCommitmentService {
         }
     }
 
-    private void open() throws IOException, ConfigurationException, InterruptedException {
-        assoc = ae.connect(remoteAE, executor);
+    /**
+     * Creates a sender with its own association to the remote AE. Several senders can send objects concurrently.
+     */
+    public Sender createSender(String name) {
+        Sender sender = new Sender(name);
+        synchronized (senders) {
+            senders.add(sender);
+        }
+        return sender;
     }
 
-    public void send(MovedDicomObject movedDcmObject) throws DcmMoveException, InterruptedException {
-        final String fn = "send: ";
+    /**
+     * @return the senders created since {@link #start()}
+     */
+    public List<Sender> getSenders() {
+        synchronized (senders) {
+            return new ArrayList<Sender>(senders);
+        }
+    }
 
-        storeResponseError = null;
+    /**
+     * Releases the associations of all the senders.
+     */
+    public void close() throws InterruptedException {
+        for (Sender sender : getSenders()) {
+            sender.close();
+        }
+    }
 
-        String objTsUid = movedDcmObject.getTransferSyntax();
-        DicomObject dcmObj = movedDcmObject.getDicomObject();
-        String objClassUid = movedDcmObject.getClassUid();
-        String objInstanceUid = movedDcmObject.getInstanceUid();
+    private String selectTransferSyntax(String[] available, String tsuid) {
+        if (tsuid.equals(UID.ImplicitVRLittleEndian))
+            return selectTransferSyntax(available, IVLE_TS);
+        if (tsuid.equals(UID.ExplicitVRLittleEndian))
+            return selectTransferSyntax(available, EVLE_TS);
+        if (tsuid.equals(UID.ExplicitVRBigEndian))
+            return selectTransferSyntax(available, EVBE_TS);
+        return tsuid;
+    }
 
-        if (log.isDebugEnabled()) {
-            log.debug(fn + "Adding moved object's transfer syntax to this SCU's capability. Class UID=["
-                    + UIDDictionary.getDictionary().nameOf(objClassUid) + "], Transfer Syntax UID=["
-                    + UIDDictionary.getDictionary().nameOf(objTsUid) + "]");
-        }
-        addTransferCapability(objClassUid, objTsUid);
-        configureTransferCapability();
-        if (log.isDebugEnabled()) {
-            StringBuffer str = new StringBuffer("Send SCU Transfer Capability:");
-            for (TransferCapability tc : ae.getTransferCapability()) {
-                String sopClassName = UIDDictionary.getDictionary().nameOf(tc.getSopClass());
-                str.append("\n\tSOP Class[" + sopClassName + "]  Transfer Syntaxes:");
-                for (String xferSyntaxUid : tc.getTransferSyntax()) {
-                    str.append("\n\t\t" + UIDDictionary.getDictionary().nameOf(xferSyntaxUid));
+    private String selectTransferSyntax(String[] available, String[] tsuids) {
+        for (int i = 0; i < tsuids.length; i++)
+            for (int j = 0; j < available.length; j++)
+                if (available[j].equals(tsuids[i]))
+                    return available[j];
+        return null;
+    }
+
+    /**
+     * @return true if the dataset can be written as received, without parsing it
+     */
+    private boolean canPassThrough(MovedDicomObject movedDcmObject, String selectedTsUid) {
+        return passthrough && movedDcmObject.hasReceivedDataset()
+            && selectedTsUid.equals(movedDcmObject.getTransferSyntax());
+    }
+
+    /**
+     * @return a writer of the dataset as received when passedThrough is true, otherwise a writer encoding the parsed
+     *         dataset in the selected transfer syntax
+     */
+    private DataWriter getDataWriter(final MovedDicomObject movedDcmObject, boolean passedThrough) {
+        if (passedThrough) {
+            return new DataWriter() {
+                public void writeTo(PDVOutputStream out, String tsuid) throws IOException {
+                    movedDcmObject.writeReceivedDataset(out);
                 }
-            }
-            log.debug(fn + str.toString());
+            };
         }
+        return new DataWriterAdapter(movedDcmObject.getDicomObject());
+    }
 
-        log.debug(fn + "Opening association");
-        try {
-            open();
-        } catch (InterruptedException e) {
-            log.error(fn + "Failed to establish association.", e);
-            throw e;
-        } catch (Exception e) {
-            log.error(fn + "Failed to establish association.", e);
-            throw new DcmMoveException("Send SCU Failed to establish association.", e);
+    /**
+     * @return the error message if the C-STORE has failed, otherwise null
+     */
+    private String checkStoreResponse(DicomObject cmd) {
+        final String fn = "checkStoreResponse: ";
+
+        int status = cmd.getInt(Tag.Status);
+        int msgId = cmd.getInt(Tag.MessageIDBeingRespondedTo);
+        switch (status) {
+        case 0:
+            objectsSent.incrementAndGet();
+            log.debug(fn + "Successfully sent object with message id " + Integer.toString(msgId));
+            return null;
+        case 0xB000:
+        case 0xB006:
+        case 0xB007:
+            objectsSent.incrementAndGet();
+            log.warn(fn + "Received WARNING RSP with Status " + Integer.toString(status) + " and message id " + Integer.toString(msgId));
+            return null;
+        default:
+            String error = "Received RSP with Status " + Integer.toString(status) + " and message id " + Integer.toString(msgId)
+                    + " and error msg:\n" + cmd.getString(Tag.ErrorComment);
+            log.error(fn + error);
+            return error;
         }
+    }
+
+    /**
+     * Sends the objects on its own association, kept open for the next objects. The transfer capability, the storage
+     * commitment and the total counters are shared by all the senders of the DcmSnd.
+     */
+    class Sender {
+
+        private final String name;
+
+        private Association assoc;
+
+        // Version of the transfer capability proposed by the current association
+        private int negotiatedVersion;
+
+        private String storeResponseError;
+
+        private volatile boolean storeResponseReceived;
+
+        // True when the object sent synchronously is written as received
+        private volatile boolean passedThrough;
+
+        // Objects sent asynchronously and waiting for their C-STORE response
+        private final IdentityHashMap<MovedDicomObject, Boolean> pendingObjects = new IdentityHashMap<MovedDicomObject, Boolean>();
+
+        private volatile String asyncStoreError;
+
+        private final AtomicInteger sent = new AtomicInteger();
+
+        private final long startTime = System.currentTimeMillis();
+
+        private volatile long endTime;
 
-        log.debug(fn + "Checking transfer syntax compatibility");
-        TransferCapability tc = assoc.getTransferCapabilityAsSCU(objClassUid);
-        if (tc == null) {
-            String str = UIDDictionary.getDictionary().prompt(objTsUid) + " not supported by " + remoteAE.getAETitle();
-            log.error(fn + str);
-            throw new DcmMoveException("Send SCU - " + str);
+        Sender(String name) {
+            this.name = name;
         }
 
-        String selectedTsUid = selectTransferSyntax(tc.getTransferSyntax(), objTsUid);
-        if (selectedTsUid == null) {
-            String str = UIDDictionary.getDictionary().prompt(objClassUid) + " with " + UIDDictionary.getDictionary().prompt(objTsUid)
-                    + " not supported by" + remoteAE.getAETitle();
-            log.error(fn + str);
-            throw new DcmMoveException("Send SCU - " + str);
+        public String getName() {
+            return name;
         }
 
-        try {
-            log.debug(fn + "Starting the C-STORE response listener.");
+        /**
+         * @return the number of objects stored by this sender
+         */
+        public int getTotalSent() {
+            return sent.get();
+        }
+
+        /**
+         * @return the number of objects stored by second, from the creation of the sender to the release of its
+         *         association
+         */
+        public float getObjectsPerSecond() {
+            long end = (assoc == null && endTime != 0L) ? endTime : System.currentTimeMillis();
+            return end > startTime ? sent.get() * 1000f / (end - startTime) : 0f;
+        }
+
+        private void open() throws IOException, ConfigurationException, InterruptedException {
+            // Read before connecting, a transfer capability added meanwhile is negotiated again by the next object
+            synchronized (as2ts) {
+                negotiatedVersion = tcVersion;
+            }
+            assoc = ae.connect(remoteAE, executor);
+            associationsOpened.incrementAndGet();
+        }
+
+        /**
+         * Opens the association if it is not open or not usable anymore. The association is kept open for the next
+         * objects, it is negotiated again only when a new SOP class or transfer syntax has been added.
+         * 
+         * @return true if a new association has been opened
+         */
+        private boolean openAssociation(boolean renegotiate) throws DcmMoveException, InterruptedException {
+            final String fn = "openAssociation: ";
+
+            if (assoc != null && (renegotiate || !assoc.isReadyForDataTransfer())) {
+                log.debug(fn + (renegotiate ? "Renegotiating the association with the new transfer capability"
+                    : "The association is not usable anymore"));
+                flush();
+                close();
+            }
+            if (assoc != null) {
+                return false;
+            }
+            log.debug(fn + name + " opening association");
+            try {
+                open();
+            } catch (InterruptedException e) {
+                log.error(fn + "Failed to establish association.", e);
+                throw e;
+            } catch (Exception e) {
+                log.error(fn + "Failed to establish association.", e);
+                throw new DcmMoveException("Send SCU Failed to establish association.", e);
+            }
+            return true;
+        }
+
+        public void send(MovedDicomObject movedDcmObject) throws DcmMoveException, InterruptedException {
+            final String fn = "send: ";
+
+            storeResponseError = null;
+
+            String objTsUid = movedDcmObject.getTransferSyntax();
+            String objClassUid = movedDcmObject.getClassUid();
+            String objInstanceUid = movedDcmObject.getInstanceUid();
+
+            int version = addTransferCapability(objClassUid, objTsUid);
+
+            // A reused association may have been closed by the remote AE, the object is sent again once on a new
+            // association
+            boolean reconnect = !openAssociation(version > negotiatedVersion);
+            if (isAsyncSend()) {
+                sendAsync(movedDcmObject, reconnect);
+                return;
+            }
             DimseRSPHandler rspHandler = new DimseRSPHandler() {
                 @Override
                 public void onDimseRSP(Association as, DicomObject cmd, DicomObject data) {
-                    DcmSnd.this.onDimseRSP(as, cmd, data);
+                    Sender.this.onDimseRSP(as, cmd, data);
                 }
             };
+            while (true) {
+                String selectedTsUid = selectTransferSyntax(objClassUid, objTsUid);
+                storeResponseReceived = false;
+                passedThrough = canPassThrough(movedDcmObject, selectedTsUid);
+                Exception failure = null;
+                try {
+                    log.debug(fn + "Sending the Dicom object...");
+                    assoc.cstore(objClassUid, objInstanceUid, priority, getDataWriter(movedDcmObject, passedThrough), selectedTsUid,
+                            rspHandler);
+                    log.debug(fn + "Waiting for response");
+                    assoc.waitForDimseRSP();
+                } catch (InterruptedException e) {
+                    log.error(fn + "Failed to send " + objInstanceUid, e);
+                    throw e;
+                } catch (Exception e) {
+                    failure = e;
+                }
+                if (storeResponseReceived) {
+                    break;
+                }
+                if (!reconnect) {
+                    log.error(fn + "Failed to send " + objInstanceUid, failure);
+                    abort();
+                    throw new DcmMoveException("Send SCU - Failed to send " + objInstanceUid, failure);
+                }
+                log.warn(fn + "Failed to send " + objInstanceUid + " on the open association, reconnecting.");
+                reconnect = false;
+                abort();
+                openAssociation(false);
+            }
 
-            log.debug(fn + "Sending the Dicom object...");
-            assoc.cstore(objClassUid, objInstanceUid, priority, new DataWriterAdapter(dcmObj), selectedTsUid, rspHandler);
+            if (null != storeResponseError) {
+                movedDcmObject.setStoreFailedReason(storeResponseError);
+                fireStudyObjectStoreFailedEvent(movedDcmObject);
+                close();
+                log.error(fn + "Received error in store response - throwing exception.");
+                throw new DcmMoveException(storeResponseError);
+            }
 
-        } catch (InterruptedException e) {
-            log.error(fn + "Failed to send " + objInstanceUid, e);
-            throw e;
-        } catch (Exception e) {
-            log.error(fn + "Failed to send " + objInstanceUid, e);
-            throw new DcmMoveException("Send SCU - Failed to send " + objInstanceUid, e);
-        }
+            // Initiate storage commitment and wait for response
+            if (isStorageCommitment()) {
+                stgCmtResult = null;
+                log.debug(fn + "Performing storage commitment");
+                if (commit(objClassUid, objInstanceUid)) {
+                    DicomObject cmtrslt;
+                    try {
+                        log.debug(fn + "Waiting for storage commitment result (N-EVENT-REPORT) ...");
+                        cmtrslt = waitForStgCmtResult();
+                    } catch (InterruptedException e) {
+                        log.error(fn + "Exception ocurred while waiting for storage commitment result (N-EVENT-REPORT).", e);
+                        throw e;
+                    }
+                    int resultType = cmtrslt.getInt(Tag.EventTypeID);
+                    if (resultType == 2) {
+                        DicomObject failedItem = cmtrslt.get(Tag.FailedSOPSequence).getDicomObject();
+                        String failedInstanceUid = failedItem.getString(Tag.ReferencedSOPInstanceUID);
+                        // failedInstanceUid should equal objInstanceUid
+                        Integer reason = new Integer(failedItem.getInt(Tag.FailureReason));
+                        log.error(fn + "Storage commitment for SOP instance '" + failedInstanceUid + "' failed for reason " + reason);
+                        movedDcmObject.setStorageCommitFailedReason(reason);
+                    } else {
+                        log.debug(fn + "Storage commitment result - success.");
+                    }
+                }
+            }
 
-        log.debug(fn + "Waiting for response");
-        try {
-            assoc.waitForDimseRSP();
-        } catch (InterruptedException e) {
-            log.error(fn + "Exception ocurred while waiting for C-STORE response.", e);
-            throw e;
-        }
+            // Check if occurred during storage commit
+            if (null != storeResponseError) {
+                close();
+                log.error(fn + "Detected a store response error.");
+                throw new DcmMoveException(storeResponseError);
+            }
 
-        if (null != storeResponseError) {
-            close();
-            log.error(fn + "Received error in store response - throwing exception.");
-            throw new DcmMoveException(storeResponseError);
+            fireStudyObjectSentEvent(movedDcmObject);
         }
 
-        // Initiate storage commitment and wait for response
-        if (isStorageCommitment()) {
-            stgCmtResult = null;
-            log.debug(fn + "Performing storage commitment");
-            if (commit(objClassUid, objInstanceUid)) {
-                DicomObject cmtrslt;
+        /**
+         * Sends the object without waiting for its response. The association blocks the C-STORE request when the
+         * negotiated number of outstanding requests is reached. The response is handled by {@link StoreRSPHandler}, a
+         * failure is reported by the next call of send() or by {@link #flush()}.
+         */
+        private void sendAsync(MovedDicomObject movedDcmObject, boolean reconnect) throws DcmMoveException,
+                InterruptedException {
+            final String fn = "sendAsync: ";
+
+            String objInstanceUid = movedDcmObject.getInstanceUid();
+            while (true) {
+                String selectedTsUid = selectTransferSyntax(movedDcmObject.getClassUid(), movedDcmObject.getTransferSyntax());
+                boolean raw = canPassThrough(movedDcmObject, selectedTsUid);
+                synchronized (pendingObjects) {
+                    pendingObjects.put(movedDcmObject, Boolean.TRUE);
+                }
+                Exception failure;
                 try {
-                    log.debug(fn + "Waiting for storage commitment result (N-EVENT-REPORT) ...");
-                    cmtrslt = waitForStgCmtResult();
+                    log.debug(fn + "Sending the Dicom object...");
+                    assoc.cstore(movedDcmObject.getClassUid(), objInstanceUid, priority, getDataWriter(movedDcmObject, raw),
+                            selectedTsUid, new StoreRSPHandler(movedDcmObject, raw));
+                    // Checked once the object has been handed off, the error belongs to a previous object
+                    checkAsyncStoreError();
+                    return;
                 } catch (InterruptedException e) {
-                    log.error(fn + "Exception ocurred while waiting for storage commitment result (N-EVENT-REPORT).", e);
+                    log.error(fn + "Failed to send " + objInstanceUid, e);
                     throw e;
+                } catch (Exception e) {
+                    failure = e;
                 }
-                int resultType = cmtrslt.getInt(Tag.EventTypeID);
-                if (resultType == 2) {
-                    DicomObject failedItem = cmtrslt.get(Tag.FailedSOPSequence).getDicomObject();
-                    String failedInstanceUid = failedItem.getString(Tag.ReferencedSOPInstanceUID);
-                    // failedInstanceUid should equal objInstanceUid
-                    Integer reason = new Integer(failedItem.getInt(Tag.FailureReason));
-                    log.error(fn + "Storage commitment for SOP instance '" + failedInstanceUid + "' failed for reason " + reason);
-                    movedDcmObject.setStorageCommitFailedReason(reason);
-                } else {
-                    log.debug(fn + "Storage commitment result - success.");
+                boolean otherPending;
+                synchronized (pendingObjects) {
+                    pendingObjects.remove(movedDcmObject);
+                    otherPending = !pendingObjects.isEmpty();
+                }
+                // The objects already sent cannot be sent again, only an idle association is reopened
+                if (!reconnect || otherPending) {
+                    log.error(fn + "Failed to send " + objInstanceUid, failure);
+                    abort();
+                    failPendingObjects("Association lost before the C-STORE response");
+                    throw new DcmMoveException("Send SCU - Failed to send " + objInstanceUid, failure);
                 }
+                log.warn(fn + "Failed to send " + objInstanceUid + " on the open association, reconnecting.");
+                reconnect = false;
+                abort();
+                openAssociation(false);
             }
         }
 
-        // Check if occurred during storage commit
-        if (null != storeResponseError) {
-            close();
-            log.error(fn + "Detected a store response error.");
-            throw new DcmMoveException(storeResponseError);
+        /**
+         * Waits for the responses of the objects sent asynchronously.
+         * 
+         * @throws DcmMoveException
+         *             if an object has not been stored
+         */
+        public void flush() throws DcmMoveException, InterruptedException {
+            if (assoc != null) {
+                assoc.waitForDimseRSP();
+            }
+            // Still pending when the association has been closed
+            failPendingObjects("Association closed before the C-STORE response");
+            checkAsyncStoreError();
         }
 
-        log.debug(fn + "Closing association");
-        close();
+        private void checkAsyncStoreError() throws DcmMoveException {
+            String error = asyncStoreError;
+            if (error != null) {
+                asyncStoreError = null;
+                log.error("Received error in asynchronous store response - throwing exception.");
+                throw new DcmMoveException(error);
+            }
+        }
 
-        fireStudyObjectSentEvent(movedDcmObject);
-    }
+        private void failPendingObjects(String reason) {
+            List<MovedDicomObject> list;
+            synchronized (pendingObjects) {
+                list = new ArrayList<MovedDicomObject>(pendingObjects.keySet());
+                pendingObjects.clear();
+            }
+            for (MovedDicomObject obj : list) {
+                onStoreFailed(obj, reason + " for " + obj.getInstanceUid());
+            }
+        }
 
-    private boolean commit(String cUid, String iUid) throws DcmMoveException, InterruptedException {
-        final String fn = "commit: ";
+        private void onStoreFailed(MovedDicomObject obj, String error) {
+            obj.setStoreFailedReason(error);
+            fireStudyObjectStoreFailedEvent(obj);
+            if (asyncStoreError == null) {
+                asyncStoreError = error;
+            }
+        }
 
-        log.debug(fn + "Performing storage commitment request (N-ACTION) ... ");
+        private String selectTransferSyntax(String objClassUid, String objTsUid) throws DcmMoveException {
+            final String fn = "selectTransferSyntax: ";
 
-        DicomObject actionInfo = new BasicDicomObject();
-        actionInfo.putString(Tag.TransactionUID, VR.UI, UIDUtils.createUID());
-        DicomElement refSOPSq = actionInfo.putSequence(Tag.ReferencedSOPSequence);
-        BasicDicomObject refSOP = new BasicDicomObject();
-        refSOP.putString(Tag.ReferencedSOPClassUID, VR.UI, cUid);
-        refSOP.putString(Tag.ReferencedSOPInstanceUID, VR.UI, iUid);
-        refSOPSq.addDicomObject(refSOP);
+            log.debug(fn + "Checking transfer syntax compatibility");
+            TransferCapability tc = assoc.getTransferCapabilityAsSCU(objClassUid);
+            if (tc == null) {
+                String str = UIDDictionary.getDictionary().prompt(objTsUid) + " not supported by " + remoteAE.getAETitle();
+                log.error(fn + str);
+                throw new DcmMoveException("Send SCU - " + str);
+            }
 
-        try {
-            DimseRSP rsp = assoc.naction(UID.StorageCommitmentPushModelSOPClass, UID.StorageCommitmentPushModelSOPInstance,
-                    STG_CMT_ACTION_TYPE, actionInfo, UID.ImplicitVRLittleEndian);
-            rsp.next();
-            DicomObject cmd = rsp.getCommand();
-            int status = cmd.getInt(Tag.Status);
-            if (status == 0) {
-                log.debug(fn + "Storage commitment request succeeded.");
-                return true;
-            }
-            storeResponseError = "Storage Commitment request failed with status: " + StringUtils.shortToHex(status) + "H. Response:\n"
-                    + cmd.toString() + "\nError msg:\n" + cmd.getString(Tag.ErrorComment);
-            log.error(fn + storeResponseError);
-        } catch (InterruptedException e) {
-            log.error(fn + "Failed to perform storage commitment request.", e);
-            throw e;
-        } catch (NoPresentationContextException e) {
-            log.error(fn + "Cannot request storage commitment.", e);
-            throw new DcmMoveException("Cannot request storage commitment.", e);
-        } catch (IOException e) {
-            log.error(fn + "Failed to send Storage Commitment request.", e);
-            throw new DcmMoveException("Failed to send Storage Commitment request.", e);
+            String selectedTsUid = DcmSnd.this.selectTransferSyntax(tc.getTransferSyntax(), objTsUid);
+            if (selectedTsUid == null) {
+                String str = UIDDictionary.getDictionary().prompt(objClassUid) + " with " + UIDDictionary.getDictionary().prompt(objTsUid)
+                        + " not supported by" + remoteAE.getAETitle();
+                log.error(fn + str);
+                throw new DcmMoveException("Send SCU - " + str);
+            }
+            return selectedTsUid;
         }
 
-        return false;
-    }
+        private boolean commit(String cUid, String iUid) throws DcmMoveException, InterruptedException {
+            final String fn = "commit: ";
 
-    private String selectTransferSyntax(String[] available, String tsuid) {
-        if (tsuid.equals(UID.ImplicitVRLittleEndian))
-            return selectTransferSyntax(available, IVLE_TS);
-        if (tsuid.equals(UID.ExplicitVRLittleEndian))
-            return selectTransferSyntax(available, EVLE_TS);
-        if (tsuid.equals(UID.ExplicitVRBigEndian))
-            return selectTransferSyntax(available, EVBE_TS);
-        return tsuid;
-    }
+            log.debug(fn + "Performing storage commitment request (N-ACTION) ... ");
 
-    private String selectTransferSyntax(String[] available, String[] tsuids) {
-        for (int i = 0; i < tsuids.length; i++)
-            for (int j = 0; j < available.length; j++)
-                if (available[j].equals(tsuids[i]))
-                    return available[j];
-        return null;
-    }
+            DicomObject actionInfo = new BasicDicomObject();
+            actionInfo.putString(Tag.TransactionUID, VR.UI, UIDUtils.createUID());
+            DicomElement refSOPSq = actionInfo.putSequence(Tag.ReferencedSOPSequence);
+            BasicDicomObject refSOP = new BasicDicomObject();
+            refSOP.putString(Tag.ReferencedSOPClassUID, VR.UI, cUid);
+            refSOP.putString(Tag.ReferencedSOPInstanceUID, VR.UI, iUid);
+            refSOPSq.addDicomObject(refSOP);
 
-    public void close() throws InterruptedException {
-        assoc.release(false);
-    }
+            try {
+                DimseRSP rsp = assoc.naction(UID.StorageCommitmentPushModelSOPClass, UID.StorageCommitmentPushModelSOPInstance,
+                        STG_CMT_ACTION_TYPE, actionInfo, UID.ImplicitVRLittleEndian);
+                rsp.next();
+                DicomObject cmd = rsp.getCommand();
+                int status = cmd.getInt(Tag.Status);
+                if (status == 0) {
+                    log.debug(fn + "Storage commitment request succeeded.");
+                    return true;
+                }
+                storeResponseError = "Storage Commitment request failed with status: " + StringUtils.shortToHex(status) + "H. Response:\n"
+                        + cmd.toString() + "\nError msg:\n" + cmd.getString(Tag.ErrorComment);
+                log.error(fn + storeResponseError);
+            } catch (InterruptedException e) {
+                log.error(fn + "Failed to perform storage commitment request.", e);
+                throw e;
+            } catch (NoPresentationContextException e) {
+                log.error(fn + "Cannot request storage commitment.", e);
+                throw new DcmMoveException("Cannot request storage commitment.", e);
+            } catch (IOException e) {
+                log.error(fn + "Failed to send Storage Commitment request.", e);
+                throw new DcmMoveException("Failed to send Storage Commitment request.", e);
+            }
 
-    private void onDimseRSP(Association as, DicomObject cmd, DicomObject data) {
-        final String fn = "onDimseRSP: ";
+            return false;
+        }
 
-        int status = cmd.getInt(Tag.Status);
-        int msgId = cmd.getInt(Tag.MessageIDBeingRespondedTo);
-        switch (status) {
-        case 0:
-            ++objectsSent;
-            log.debug(fn + "Successfully sent object with message id " + Integer.toString(msgId));
-            break;
-        case 0xB000:
-        case 0xB006:
-        case 0xB007:
-            ++objectsSent;
-            log.warn(fn + "Received WARNING RSP with Status " + Integer.toString(status) + " and message id " + Integer.toString(msgId));
-            break;
-        default:
-            storeResponseError = "Received RSP with Status " + Integer.toString(status) + " and message id " + Integer.toString(msgId)
-                    + " and error msg:\n" + cmd.getString(Tag.ErrorComment);
-            log.error(fn + storeResponseError);
+        /**
+         * Releases the association, a new one is opened by the next object to send.
+         */
+        public void close() throws InterruptedException {
+            if (assoc != null) {
+                Association as = assoc;
+                assoc = null;
+                endTime = System.currentTimeMillis();
+                as.release(false);
+            }
+        }
+
+        private void abort() {
+            if (assoc != null) {
+                Association as = assoc;
+                assoc = null;
+                endTime = System.currentTimeMillis();
+                as.abort();
+            }
+        }
+
+        private void onDimseRSP(Association as, DicomObject cmd, DicomObject data) {
+            storeResponseReceived = true;
+            String error = checkStoreResponse(cmd);
+            if (error == null) {
+                sent.incrementAndGet();
+                if (passedThrough) {
+                    objectsPassedThrough.incrementAndGet();
+                }
+            } else {
+                storeResponseError = error;
+            }
+        }
+
+        /**
+         * Handles the response of an object sent asynchronously, each object has its own handler.
+         */
+        private class StoreRSPHandler extends DimseRSPHandler {
+            private final MovedDicomObject movedDcmObject;
+            private final boolean passedThrough;
+
+            StoreRSPHandler(MovedDicomObject movedDcmObject, boolean passedThrough) {
+                this.movedDcmObject = movedDcmObject;
+                this.passedThrough = passedThrough;
+            }
+
+            @Override
+            public void onDimseRSP(Association as, DicomObject cmd, DicomObject data) {
+                synchronized (pendingObjects) {
+                    if (pendingObjects.remove(movedDcmObject) == null) {
+                        // Already reported as failed
+                        return;
+                    }
+                }
+                String error = checkStoreResponse(cmd);
+                if (error == null) {
+                    sent.incrementAndGet();
+                    if (passedThrough) {
+                        objectsPassedThrough.incrementAndGet();
+                    }
+                    fireStudyObjectSentEvent(movedDcmObject);
+                } else {
+                    onStoreFailed(movedDcmObject, error + "\nSOP Instance UID: " + movedDcmObject.getInstanceUid());
+                }
+            }
         }
     }
 
@@ -525,4 +924,13 @@ class DcmSnd extends StorageCommitmentService {
             }
         });
     }
+
+    private void fireStudyObjectStoreFailedEvent(final MovedDicomObject obj) {
+        final ActionEvent event = new StudyObjectMoveEvent(this, obj, MoveEvents.STUDY_OBJECT_STORE_FAILED);
+        eventExecutor.execute(new Runnable() {
+            public void run() {
+                moveActionListener.actionPerformed(event);
+            }
+        });
+    }
 }
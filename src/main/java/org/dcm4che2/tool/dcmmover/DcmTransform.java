@@ -5,6 +5,8 @@ import java.awt.event.ActionListener;
 import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
@@ -27,13 +29,20 @@ class DcmTransform {
 
     private ObjectTransformData xformObjectData;
 
-    private BlockingQueue<MovedDicomObject> movedObjQueue;
+    private volatile BlockingQueue<MovedDicomObject> movedObjQueue;
 
     private DcmSnd dcmSnd;
 
-    private boolean stop;
+    private volatile boolean stop;
 
-    private int objectsTransformed;
+    private final AtomicInteger objectsTransformed = new AtomicInteger();
+
+    private int workers = 1;
+
+    private final AtomicInteger runningWorkers = new AtomicInteger();
+
+    // First exception of the transform-send threads
+    private final AtomicReference<Exception> workerException = new AtomicReference<Exception>();
 
     Executor eventExecutor = new NewThreadExecutor("TRNSFRM_SND_EVENTS");
 
@@ -45,6 +54,18 @@ class DcmTransform {
         this.generateNewUIDs = generateNewUIDs;
     }
 
+    /**
+     * Sets the number of threads transforming and sending the objects, each thread sends on its own association.
+     * Storage commitment always uses a single thread.
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers < 1 ? 1 : workers;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
     /**
      * Pops study objects off the queue, anonymizes them (if so configured), and passes them to the Storage SCU.
      * 
@@ -53,49 +74,98 @@ class DcmTransform {
      * @param dcmObjectQueue
      *            Queue that is monitored for study objects.
      */
-    public void start(ObjectTransformData objIod, BlockingQueue<MovedDicomObject> dcmObjectQueue) {
+    public void start(ObjectTransformData objIod, final BlockingQueue<MovedDicomObject> dcmObjectQueue) {
         movedObjQueue = dcmObjectQueue;
         this.xformObjectData = objIod;
         stop = false;
-        objectsTransformed = 0;
+        objectsTransformed.set(0);
+        workerException.set(null);
 
-        new NewThreadExecutor("TRNSFRM_SND").execute(new Runnable() {
-            public void run() {
-                final String fn = "run: ";
-                Exception exception = null;
-                try {
-                    while (!stop || !movedObjQueue.isEmpty()) {
-                        log.debug(fn + "Popping object off the queue.");
-                        Object queuedObj = movedObjQueue.take();
-                        if (QueueWakeupObject.class.isInstance(queuedObj)) {
-                            log.info(fn + "Popped Wakeup object off the queue. (this.stop="
-                                + new Boolean(stop).toString() + ")");
-                            if (!movedObjQueue.isEmpty()) {
-                                log.info(fn + "Queue is not empty! Pushing Wakeup object back to end of the queue.");
-                                movedObjQueue.put((QueueWakeupObject) queuedObj);
-                            }
-                        } else {
-                            log.debug(fn + "Popped Dicom object off the queue.");
-                            MovedDicomObject xformedObj = transform((MovedDicomObject) queuedObj);
-                            log.debug(fn + "Passing the object to the Dicom Sender...");
-                            dcmSnd.send(xformedObj);
-                            xformedObj.deleteFile();
-                        }
+        int nbWorkers = dcmSnd.isStorageCommitment() ? 1 : workers;
+        runningWorkers.set(nbWorkers);
+        log.info("start: Starting " + nbWorkers + " transform-send thread(s).");
+        for (int i = 1; i <= nbWorkers; i++) {
+            final DcmSnd.Sender sender = dcmSnd.createSender("TRNSFRM_SND-" + i);
+            new NewThreadExecutor("TRNSFRM_SND").execute(new Runnable() {
+                public void run() {
+                    runWorker(sender, dcmObjectQueue);
+                }
+            });
+        }
+    }
+
+    private void runWorker(DcmSnd.Sender sender, BlockingQueue<MovedDicomObject> queue) {
+        final String fn = "run: ";
+        Exception exception = null;
+        try {
+            while (!stop || !queue.isEmpty()) {
+                log.debug(fn + "Popping object off the queue.");
+                Object queuedObj = queue.take();
+                if (QueueWakeupObject.class.isInstance(queuedObj)) {
+                    log.info(fn + "Popped Wakeup object off the queue. (this.stop=" + new Boolean(stop).toString()
+                        + ")");
+                    // Each thread consumes one wakeup object, it is pushed back while study objects remain
+                    if (workerException.get() != null || !containsStudyObjects(queue)) {
+                        break;
                     }
-                } catch (DcmMoveException e) {
-                    log.error(fn + "Exception ocurred while transforming and sending.", e);
-                    exception = e;
-                } catch (InterruptedException e) {
-                    log.error(fn + "Thread InterruptedException ocurred.", e);
-                    exception = e;
+                    log.info(fn + "Queue is not empty! Pushing Wakeup object back to end of the queue.");
+                    queue.put((QueueWakeupObject) queuedObj);
+                } else {
+                    log.debug(fn + "Popped Dicom object off the queue.");
+                    MovedDicomObject xformedObj = transform((MovedDicomObject) queuedObj);
+                    log.debug(fn + "Passing the object to the Dicom Sender...");
+                    try {
+                        sender.send(xformedObj);
+                    } finally {
+                        // Also when the send fails, the spilled file and the received bytes must be released
+                        xformedObj.release();
+                    }
+                }
+                if (workerException.get() != null) {
+                    log.info(fn + "Another transform-send thread has failed.");
+                    break;
                 }
-                log.debug(fn + "Breaking out of TRNSFRM_SND thread and releasing the moved object queue.");
-                movedObjQueue = null;
-                stop = true;
-                log.info(fn + "Signaling end of transform-send thread.");
-                fireTransformSendCompletedEvent(exception);
             }
-        });
+            log.debug(fn + "Waiting for the responses of the objects sent asynchronously.");
+            sender.flush();
+        } catch (DcmMoveException e) {
+            log.error(fn + "Exception ocurred while transforming and sending.", e);
+            exception = e;
+        } catch (InterruptedException e) {
+            log.error(fn + "Thread InterruptedException ocurred.", e);
+            exception = e;
+        } finally {
+            try {
+                sender.close();
+            } catch (InterruptedException e) {
+                log.error(fn + "Exception while releasing the association.", e);
+            }
+        }
+
+        if (exception != null && workerException.compareAndSet(null, exception)) {
+            // Wake up the other threads waiting on the queue
+            for (int i = 0; i < runningWorkers.get(); i++) {
+                queue.offer(new QueueWakeupObject());
+            }
+        }
+        log.info(fn + sender.getName() + " sent " + sender.getTotalSent() + " objects (" + sender.getObjectsPerSecond()
+            + " objects/s)");
+        if (runningWorkers.decrementAndGet() == 0) {
+            log.debug(fn + "Breaking out of TRNSFRM_SND threads and releasing the moved object queue.");
+            movedObjQueue = null;
+            stop = true;
+            log.info(fn + "Signaling end of transform-send threads.");
+            fireTransformSendCompletedEvent(workerException.get());
+        }
+    }
+
+    private static boolean containsStudyObjects(BlockingQueue<MovedDicomObject> queue) {
+        for (MovedDicomObject obj : queue) {
+            if (!QueueWakeupObject.class.isInstance(obj)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     class QueueWakeupObject extends MovedDicomObject {
@@ -109,8 +179,12 @@ class DcmTransform {
             return;
         }
         stop = true;
-        if (null != movedObjQueue) {
-            movedObjQueue.add(new QueueWakeupObject());
+        BlockingQueue<MovedDicomObject> queue = movedObjQueue;
+        if (null != queue) {
+            // One wakeup object by running thread
+            for (int i = 0; i < runningWorkers.get(); i++) {
+                queue.add(new QueueWakeupObject());
+            }
         }
     }
 
@@ -182,7 +256,7 @@ class DcmTransform {
             dcmObj.putString(Tag.SOPInstanceUID, VR.UI, newObjectUid);
             log.debug(fn + "Replaced Object UID [" + oldObjectUid + "] with new Object UID [" + newObjectUid + "]");
         }
-        objectsTransformed++;
+        objectsTransformed.incrementAndGet();
         fireStudyObjectTransformedEvent(movedDcmObj);
         return movedDcmObj;
     }
@@ -210,6 +284,6 @@ class DcmTransform {
     }
 
     public int getTotalTransformed() {
-        return objectsTransformed;
+        return objectsTransformed.get();
     }
 }
@@ -12,6 +12,8 @@ class MoveEvents {
 
     public final static int STUDY_OBJECT_SENT = 3;
 
+    public final static int STUDY_OBJECT_STORE_FAILED = 4;
+
     public final static int STUDY_OBJECT_MOVED = 6;
 
     public final static int TRANSFORMER_SENDER_COMPLETED = 9;
@@ -14,6 +14,47 @@ public interface MoveResponse {
     
     public String getMoveDestinationAeTitle();
     
+    /**
+     * @return the number of associations opened to the move destination. The objects of a study are sent on the same
+     *         association, a new one is opened only for a new SOP class or transfer syntax, or after a failure.
+     */
+    public int getNumberOfSendAssociations();
+    
+    /**
+     * @return the number of objects forwarded as received, without parsing and encoding their dataset
+     */
+    public int getNumberOfPassthroughStudyObjects();
+    
+    /**
+     * @return the number of objects sent by each transform/send thread
+     */
+    public int[] getNumberOfStudyObjectsSentPerWorker();
+    
+    /**
+     * @return the throughput of each transform/send thread in objects per second
+     */
+    public float[] getObjectsPerSecondPerWorker();
+    
+    /**
+     * @return the number of received objects written to temporary files because the memory budget was exhausted
+     */
+    public int getNumberOfSpilledStudyObjects();
+    
+    /**
+     * @return the number of bytes written to temporary files
+     */
+    public long getSpilledBytes();
+    
+    /**
+     * @return the maximum number of bytes of the received objects held in memory
+     */
+    public long getPeakBytesInMemory();
+    
+    /**
+     * @return the time in ms during which the reception has waited for the sender because the disk budget was exhausted
+     */
+    public long getBackPressureTime();
+    
     /**
      * Returns a study/series/object uid mapping XML document as a string. Document Template:
      * <xsd:element name='study' minOccurs='1' maxOccurs='1'>
@@ -48,5 +89,21 @@ public interface MoveResponse {
      */
     public String getStorageCommitFailuresDoc();
     
+    /**
+     * Returns
+     * <xsd:element name='failedStore' minOccurs='1' maxOccurs='unbounded'>
+     * 	<xsd:attribute name='objectUid' type='string'/>
+     * 	<xsd:attribute name='reason' type='string'/>
+     * </xsd:element>
+     * @return An XML document as a string with the objects rejected by the move destination or lost before their
+     *         C-STORE response. Can be an empty string if no failures.
+     */
+    public String getStoreFailuresDoc();
+    
+    /**
+     * @return the number of objects which have not been stored by the move destination
+     */
+    public int getNumberOfStoreFailures();
+    
     public String getError();
 }
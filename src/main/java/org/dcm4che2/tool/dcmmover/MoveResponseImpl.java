@@ -3,6 +3,8 @@ package org.dcm4che2.tool.dcmmover;
 import java.util.HashMap;
 import java.util.List;
 
+import org.weasis.launcher.wado.xml.EscapeChars;
+
 /**
  * Concrete implemenation of the MoveResponse interface.
  * 
@@ -19,12 +21,16 @@ class MoveResponseImpl implements MoveResponse {
 
     final static String FAILED_STORAGE_COMMIT_ELEMENT_NAME = "failedStorageCommitment";
 
+    final static String FAILED_STORE_ELEMENT_NAME = "failedStore";
+
     String uidOfStudyToMove;
 
     String uidMappingDoc;
 
     String storageCommitFailuresDoc;
 
+    StringBuffer storeFailuresDoc = new StringBuffer();
+
     String error;
 
     String moveSourceAeTitle;
@@ -47,6 +53,24 @@ class MoveResponseImpl implements MoveResponse {
 
     int numberOfStorageCommitFailures;
 
+    int numberOfStoreFailures;
+
+    int numberOfSendAssociations;
+
+    int numberOfPassthroughObjects;
+
+    int[] numberOfSentObjectsPerWorker = new int[0];
+
+    float[] objectsPerSecondPerWorker = new float[0];
+
+    int numberOfSpilledObjects;
+
+    long spilledBytes;
+
+    long peakBytesInMemory;
+
+    long backPressureTime;
+
     boolean transforming = false;
 
     boolean moveSuccessful = false;
@@ -86,6 +110,27 @@ class MoveResponseImpl implements MoveResponse {
         numberOfFoundSeries = num;
     }
 
+    public void setNumberOfSendAssociations(int num) {
+        numberOfSendAssociations = num;
+    }
+
+    public void setNumberOfPassthroughStudyObjects(int num) {
+        numberOfPassthroughObjects = num;
+    }
+
+    public void setWorkerStatistics(int[] sentObjects, float[] objectsPerSecond) {
+        numberOfSentObjectsPerWorker = sentObjects;
+        objectsPerSecondPerWorker = objectsPerSecond;
+    }
+
+    public void setReceiveBufferStatistics(int spilledObjects, long spilledBytes, long peakBytesInMemory,
+        long backPressureTime) {
+        numberOfSpilledObjects = spilledObjects;
+        this.spilledBytes = spilledBytes;
+        this.peakBytesInMemory = peakBytesInMemory;
+        this.backPressureTime = backPressureTime;
+    }
+
     public void setError(String error) {
         this.error = error;
     }
@@ -105,6 +150,12 @@ class MoveResponseImpl implements MoveResponse {
         numberOfStorageCommitFailures++;
     }
 
+    public synchronized void setStoreFailedReason(String objectUid, String reason) {
+        storeFailuresDoc.append("<" + FAILED_STORE_ELEMENT_NAME + " objectUid='" + objectUid + "' reason='"
+            + EscapeChars.forXML(reason) + "'/>");
+        numberOfStoreFailures++;
+    }
+
     public void setStudyUidMapping(HashMap<String, UidTreePair> uidMap) {
         if (uidMap == null) {
             return;
@@ -174,6 +225,38 @@ class MoveResponseImpl implements MoveResponse {
         return numberOfMovedObjects;
     }
 
+    public int getNumberOfSendAssociations() {
+        return numberOfSendAssociations;
+    }
+
+    public int getNumberOfPassthroughStudyObjects() {
+        return numberOfPassthroughObjects;
+    }
+
+    public int[] getNumberOfStudyObjectsSentPerWorker() {
+        return numberOfSentObjectsPerWorker;
+    }
+
+    public float[] getObjectsPerSecondPerWorker() {
+        return objectsPerSecondPerWorker;
+    }
+
+    public int getNumberOfSpilledStudyObjects() {
+        return numberOfSpilledObjects;
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    public long getPeakBytesInMemory() {
+        return peakBytesInMemory;
+    }
+
+    public long getBackPressureTime() {
+        return backPressureTime;
+    }
+
     public String getUidMappingDoc() {
         return uidMappingDoc;
     }
@@ -182,6 +265,14 @@ class MoveResponseImpl implements MoveResponse {
         return storageCommitFailuresDoc;
     }
 
+    public synchronized String getStoreFailuresDoc() {
+        return storeFailuresDoc.toString();
+    }
+
+    public synchronized int getNumberOfStoreFailures() {
+        return numberOfStoreFailures;
+    }
+
     @Override
     public String toString() {
         StringBuffer str = new StringBuffer();
@@ -198,6 +289,23 @@ class MoveResponseImpl implements MoveResponse {
             str.append("\n\tNumber of Transformed Study Objects: " + numberOfTransformedObjects);
         }
         str.append("\n\tNumber of Study Objects Moved: " + numberOfMovedObjects);
+        if (!transforming) {
+            str.append("\n\tNumber of Study Objects Forwarded Without Parsing: " + numberOfPassthroughObjects);
+        }
+        str.append("\n\tPeak Bytes of Received Objects in Memory: " + peakBytesInMemory);
+        str.append("\n\tNumber of Received Objects Spilled to Disk: " + numberOfSpilledObjects + " (" + spilledBytes
+            + " bytes)");
+        if (backPressureTime > 0) {
+            str.append("\n\tReception Waiting for the Sender: " + backPressureTime / 1000f + " s");
+        }
+        str.append("\n\tNumber of Send Associations: " + numberOfSendAssociations);
+        for (int i = 0; i < numberOfSentObjectsPerWorker.length; i++) {
+            str.append("\n\tTransform-Send Worker " + (i + 1) + ": " + numberOfSentObjectsPerWorker[i] + " objects, "
+                + objectsPerSecondPerWorker[i] + " objects/s");
+        }
+        if (numberOfStoreFailures > 0) {
+            str.append("\n\tNumber of Store Failures: " + numberOfStoreFailures);
+        }
         if (numberOfStorageCommitFailures > 0) {
             str.append("\n\tNumber of Storage Commit Failures: " + numberOfStorageCommitFailures);
         }
@@ -1,13 +1,22 @@
 package org.dcm4che2.tool.dcmmover;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.net.PDVOutputStream;
 import org.dcm4che2.util.CloseUtils;
 import org.dcm4che2.util.UIDUtils;
 
@@ -26,6 +35,10 @@ class MovedDicomObject {
     // The DICOM object being moved
     DicomObject dcmObj;
     File file;
+    // Chunks of the dataset received in memory, parsed on the first call of getDicomObject()
+    List<byte[]> data;
+    // Position of the dataset in the file, -1 if unknown
+    long datasetOffset = -1L;
     final String tsUid;
     final String cUid;
     final String iUid;
@@ -34,6 +47,13 @@ class MovedDicomObject {
 
     String storageCommitFailedReason;
 
+    String storeFailedReason;
+
+    // Budget which accounts for the received bytes until the object is released
+    private ReceiveBuffer receiveBuffer;
+
+    private long receivedSize;
+
     public MovedDicomObject(DicomObject dcmObj, String tsuid) {
         this.dcmObj = dcmObj;
         this.tsUid = tsuid;
@@ -48,6 +68,13 @@ class MovedDicomObject {
         this.iUid = iuid;
     }
 
+    public MovedDicomObject(List<byte[]> data, String tsuid, String cuid, String iuid) {
+        this.data = data;
+        this.tsUid = tsuid;
+        this.cUid = cuid;
+        this.iUid = iuid;
+    }
+
     /**
      * Clear the class level persistence.
      */
@@ -65,7 +92,7 @@ class MovedDicomObject {
 
     public String getNewObjectUid(String oldUid, String oldSeriesUid, String oldStudyUid) {
         String newUid = getNewObjectUidPair(oldUid, oldSeriesUid, oldStudyUid).getNewUid();
-        if (oldUid == iUid) {
+        if (iUid.equals(oldUid)) {
             newiUid = newUid;
         }
         return newUid;
@@ -83,18 +110,106 @@ class MovedDicomObject {
         return storageCommitFailedReason;
     }
 
+    public boolean storeFailed() {
+        return (null != storeFailedReason);
+    }
+
+    public String getStoreFailedReason() {
+        return storeFailedReason;
+    }
+
+    public void setStoreFailedReason(String reason) {
+        storeFailedReason = reason;
+    }
+
     public void deleteFile() {
         if (file != null) {
             file.delete();
         }
     }
 
+    void setDatasetOffset(long datasetOffset) {
+        this.datasetOffset = datasetOffset;
+    }
+
+    /**
+     * @return true if the dataset has not been parsed and can be written as received by
+     *         {@link #writeReceivedDataset(PDVOutputStream)}
+     */
+    public boolean hasReceivedDataset() {
+        return dcmObj == null && (data != null || (file != null && datasetOffset >= 0L));
+    }
+
+    /**
+     * Writes the dataset as received, in the transfer syntax of the object, without parsing it.
+     */
+    public void writeReceivedDataset(PDVOutputStream out) throws IOException {
+        if (data != null) {
+            for (byte[] b : data) {
+                out.write(b);
+            }
+            return;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            long skip = datasetOffset;
+            while (skip > 0L) {
+                long n = in.skip(skip);
+                if (n <= 0L) {
+                    throw new EOFException("Cannot reach the dataset of " + file);
+                }
+                skip -= n;
+            }
+            out.copyFrom(in);
+        } finally {
+            CloseUtils.safeClose(in);
+        }
+    }
+
+    void setReceiveBuffer(ReceiveBuffer receiveBuffer, long receivedSize) {
+        this.receiveBuffer = receiveBuffer;
+        this.receivedSize = receivedSize;
+    }
+
+    /**
+     * Deletes the spilled file and gives back the received bytes to the receive buffer. Called once the object has been
+     * sent.
+     */
+    public void release() {
+        deleteFile();
+        ReceiveBuffer buffer = receiveBuffer;
+        if (buffer != null) {
+            receiveBuffer = null;
+            if (file == null) {
+                buffer.releaseMemory(receivedSize);
+            } else {
+                buffer.releaseSpilled(receivedSize);
+            }
+        }
+        data = null;
+    }
+
     public File getFile() {
         return file;
     }
 
     public DicomObject getDicomObject() {
-        if (dcmObj == null && file != null) {
+        if (dcmObj == null && data != null) {
+            DicomInputStream in = null;
+            try {
+                List<InputStream> chunks = new ArrayList<InputStream>(data.size());
+                for (byte[] b : data) {
+                    chunks.add(new ByteArrayInputStream(b));
+                }
+                in = new DicomInputStream(new SequenceInputStream(Collections.enumeration(chunks)), tsUid);
+                dcmObj = in.readDicomObject();
+                data = null;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                CloseUtils.safeClose(in);
+            }
+        } else if (dcmObj == null && file != null) {
             if (file.canRead()) {
                 DicomInputStream in = null;
                 try {
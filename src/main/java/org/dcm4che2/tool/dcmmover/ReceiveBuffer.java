@@ -0,0 +1,159 @@
+package org.dcm4che2.tool.dcmmover;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Byte budgets of the study objects received by the DcmMover and waiting in the queue to be sent. The objects are kept
+ * in memory within the memory budget and are spilled to temporary files beyond it. When the disk budget is exhausted,
+ * the reception of the next object waits for the sender, which delays the C-STORE responses to the C-MOVE SCP.
+ */
+class ReceiveBuffer {
+
+    static Logger log = LoggerFactory.getLogger(ReceiveBuffer.class);
+
+    private long memoryBudget = 64L * 1024 * 1024;
+
+    // 0 means unlimited
+    private long diskBudget = 0L;
+
+    private long bytesInMemory;
+
+    private long bytesSpilled;
+
+    private long peakBytesInMemory;
+
+    private long totalBytesSpilled;
+
+    private int spilledObjects;
+
+    private long backPressureTime;
+
+    private boolean closed;
+
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget
+     *            the maximum number of bytes of the objects kept in memory, 0 for always spilling to disk
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget < 0 ? 0 : memoryBudget;
+    }
+
+    public synchronized long getDiskBudget() {
+        return diskBudget;
+    }
+
+    /**
+     * @param diskBudget
+     *            the number of bytes spilled to disk from which the reception waits for the sender, 0 for unlimited
+     */
+    public synchronized void setDiskBudget(long diskBudget) {
+        this.diskBudget = diskBudget < 0 ? 0 : diskBudget;
+    }
+
+    /**
+     * Clears the counters for a new move.
+     */
+    public synchronized void reset() {
+        bytesInMemory = 0L;
+        bytesSpilled = 0L;
+        peakBytesInMemory = 0L;
+        totalBytesSpilled = 0L;
+        spilledObjects = 0;
+        backPressureTime = 0L;
+        closed = false;
+    }
+
+    /**
+     * Wakes up the reception waiting for space, the next objects are spilled without limit.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits while the disk budget is exhausted.
+     */
+    public synchronized void waitForSpace() throws InterruptedException {
+        if (!isFull()) {
+            return;
+        }
+        log.debug("waitForSpace: Receive buffer is full, waiting for the sender.");
+        long t = System.currentTimeMillis();
+        while (isFull()) {
+            wait();
+        }
+        backPressureTime += System.currentTimeMillis() - t;
+    }
+
+    private boolean isFull() {
+        return !closed && diskBudget > 0 && bytesSpilled >= diskBudget;
+    }
+
+    /**
+     * @return true if the bytes can be kept in memory, false if the memory budget is exhausted
+     */
+    public synchronized boolean reserveMemory(long size) {
+        if (bytesInMemory + size > memoryBudget) {
+            return false;
+        }
+        bytesInMemory += size;
+        if (bytesInMemory > peakBytesInMemory) {
+            peakBytesInMemory = bytesInMemory;
+        }
+        return true;
+    }
+
+    public synchronized void releaseMemory(long size) {
+        bytesInMemory -= size;
+    }
+
+    public synchronized void addSpilled(long size) {
+        bytesSpilled += size;
+        totalBytesSpilled += size;
+        spilledObjects++;
+    }
+
+    public synchronized void releaseSpilled(long size) {
+        bytesSpilled -= size;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of bytes of the objects currently in memory
+     */
+    public synchronized long getBytesInMemory() {
+        return bytesInMemory;
+    }
+
+    /**
+     * @return the number of bytes of the objects currently spilled to disk
+     */
+    public synchronized long getBytesSpilled() {
+        return bytesSpilled;
+    }
+
+    public synchronized long getPeakBytesInMemory() {
+        return peakBytesInMemory;
+    }
+
+    public synchronized long getTotalBytesSpilled() {
+        return totalBytesSpilled;
+    }
+
+    public synchronized int getNumberOfSpilledObjects() {
+        return spilledObjects;
+    }
+
+    /**
+     * @return the time in ms during which the reception has waited for the sender
+     */
+    public synchronized long getBackPressureTime() {
+        return backPressureTime;
+    }
+}
@@ -54,6 +54,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Executor;
 
+import javax.net.ssl.SSLContext;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -307,6 +309,8 @@ public class DcmQR {
 
     private boolean cget;
 
+    private boolean cecho;
+
     private String moveDest;
 
     private File storeDest;
@@ -1188,7 +1192,7 @@ public class DcmQR {
         String[] getcuids = cget ? qrlevel.getGetClassUids() : EMPTY_STRING;
         TransferCapability[] tcs =
             new TransferCapability[findcuids.length + privateFind.size() + movecuids.length + getcuids.length
-                + storeTransferCapability.size()];
+                + storeTransferCapability.size() + (cecho ? 1 : 0)];
         int i = 0;
         for (String cuid : findcuids) {
             tcs[i++] = mkFindTC(cuid, ivrle ? IVRLE_TS : NATIVE_LE_TS);
@@ -1205,6 +1209,9 @@ public class DcmQR {
         for (TransferCapability tc : storeTransferCapability) {
             tcs[i++] = tc;
         }
+        if (cecho) {
+            tcs[i++] = new TransferCapability(UID.VerificationSOPClass, IVRLE_TS, TransferCapability.SCU);
+        }
         ae.setTransferCapability(tcs);
         if (!storeTransferCapability.isEmpty()) {
             ae.register(createStorageService());
@@ -1270,6 +1277,15 @@ public class DcmQR {
         keys.putString(Tag.QueryRetrieveLevel, VR.CS, qrlevel.getCode());
     }
 
+    /**
+     * Removes all the matching and return keys, only the current query level is kept. Allows to send another query
+     * on the same association.
+     */
+    public void clearKeys() {
+        keys = new BasicDicomObject();
+        keys.putString(Tag.QueryRetrieveLevel, VR.CS, qrlevel.getCode());
+    }
+
     public final void addPrivate(String cuid) {
         privateFind.add(cuid);
     }
@@ -1290,6 +1306,18 @@ public class DcmQR {
         return cget;
     }
 
+    /**
+     * Proposes the Verification SOP Class, which allows to check with {@link #echo()} that an open association is
+     * still usable.
+     */
+    public void setCEcho(boolean cecho) {
+        this.cecho = cecho;
+    }
+
+    public boolean isCEcho() {
+        return cecho;
+    }
+
     public void setMoveDest(String aet) {
         moveDest = aet;
     }
@@ -1348,51 +1376,108 @@ public class DcmQR {
         assoc = ae.connect(remoteAE, executor);
     }
 
+    public boolean isConnected() {
+        return assoc != null && assoc.isReadyForDataTransfer();
+    }
+
+    /**
+     * Sends a C-ECHO on the open association, requires {@link #setCEcho(boolean)} before opening the association.
+     */
+    public void echo() throws IOException, InterruptedException {
+        assoc.cecho().next();
+    }
+
     public DicomObject getKeys() {
         return keys;
     }
 
     public List<DicomObject> query() throws IOException, InterruptedException {
-        List<DicomObject> result = new ArrayList<DicomObject>();
+        final List<DicomObject> result = new ArrayList<DicomObject>();
+        query(new QueryResponseHandler() {
+
+            public void onResponse(DicomObject dataset) {
+                result.add(dataset);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Performs the query and gives each matching entry to the handler as soon as it is received, without keeping the
+     * datasets in memory.
+     *
+     * @return the number of matching entries
+     */
+    public int query(QueryResponseHandler handler) throws IOException, InterruptedException {
         TransferCapability tc = selectFindTransferCapability();
         String cuid = tc.getSopClass();
         String tsuid = selectTransferSyntax(tc);
         if (tc.getExtInfoBoolean(ExtQueryTransferCapability.RELATIONAL_QUERIES) || containsUpperLevelUIDs(cuid)) {
             LOG.info("Send Query Request using {}:\n{}", UIDDictionary.getDictionary().prompt(cuid), keys);
             DimseRSP rsp = assoc.cfind(cuid, priority, keys, tsuid, cancelAfter);
-            while (rsp.next()) {
+            return readResponses(rsp, handler);
+        }
+        List<DicomObject> upperLevelUIDs = queryUpperLevelUIDs(cuid, tsuid);
+        List<DimseRSP> rspList = new ArrayList<DimseRSP>(upperLevelUIDs.size());
+        for (int i = 0, n = upperLevelUIDs.size(); i < n; i++) {
+            upperLevelUIDs.get(i).copyTo(keys);
+            LOG.info(
+                "Send Query Request #{}/{} using {}:\n{}",
+                new Object[] { Integer.valueOf(i + 1), Integer.valueOf(n), UIDDictionary.getDictionary().prompt(cuid),
+                    keys });
+            rspList.add(assoc.cfind(cuid, priority, keys, tsuid, cancelAfter));
+        }
+        int nbResponses = 0;
+        for (int i = 0, n = rspList.size(); i < n; i++) {
+            DimseRSP rsp = rspList.get(i);
+            for (int j = 0; rsp.next(); ++j) {
                 DicomObject cmd = rsp.getCommand();
                 if (CommandUtils.isPending(cmd)) {
                     DicomObject data = rsp.getDataset();
-                    result.add(data);
-                    LOG.info("Query Response #{}:\n{}", Integer.valueOf(result.size()), data);
+                    nbResponses++;
+                    LOG.info("Query Response #{} for Query Request #{}/{}:\n{}",
+                        new Object[] { Integer.valueOf(j + 1), Integer.valueOf(i + 1), Integer.valueOf(n), data });
+                    handler.onResponse(data);
                 }
             }
-        } else {
-            List<DicomObject> upperLevelUIDs = queryUpperLevelUIDs(cuid, tsuid);
-            List<DimseRSP> rspList = new ArrayList<DimseRSP>(upperLevelUIDs.size());
-            for (int i = 0, n = upperLevelUIDs.size(); i < n; i++) {
-                upperLevelUIDs.get(i).copyTo(keys);
-                LOG.info(
-                    "Send Query Request #{}/{} using {}:\n{}",
-                    new Object[] { Integer.valueOf(i + 1), Integer.valueOf(n),
-                        UIDDictionary.getDictionary().prompt(cuid), keys });
-                rspList.add(assoc.cfind(cuid, priority, keys, tsuid, cancelAfter));
-            }
-            for (int i = 0, n = rspList.size(); i < n; i++) {
-                DimseRSP rsp = rspList.get(i);
-                for (int j = 0; rsp.next(); ++j) {
-                    DicomObject cmd = rsp.getCommand();
-                    if (CommandUtils.isPending(cmd)) {
-                        DicomObject data = rsp.getDataset();
-                        result.add(data);
-                        LOG.info("Query Response #{} for Query Request #{}/{}:\n{}",
-                            new Object[] { Integer.valueOf(j + 1), Integer.valueOf(i + 1), Integer.valueOf(n), data });
-                    }
-                }
+        }
+        return nbResponses;
+    }
+
+    /**
+     * Gives the dataset of each pending response to the handler until the final response is received.
+     *
+     * @return the number of matching entries
+     */
+    public int readResponses(DimseRSP rsp, QueryResponseHandler handler) throws IOException, InterruptedException {
+        int nbResponses = 0;
+        while (rsp.next()) {
+            DicomObject cmd = rsp.getCommand();
+            if (CommandUtils.isPending(cmd)) {
+                DicomObject data = rsp.getDataset();
+                nbResponses++;
+                LOG.info("Query Response #{}:\n{}", Integer.valueOf(nbResponses), data);
+                handler.onResponse(data);
             }
         }
-        return result;
+        return nbResponses;
+    }
+
+    /**
+     * Sends the C-FIND request with the current keys and returns without waiting for the responses. Several requests
+     * can be outstanding on the same association, up to the negotiated maximum number of asynchronous operations.
+     *
+     * @return the responses of the request, or null when the upper level unique keys must be queried first (the
+     *         query must then be done with {@link #query()})
+     */
+    public DimseRSP sendQuery() throws IOException, InterruptedException {
+        TransferCapability tc = selectFindTransferCapability();
+        String cuid = tc.getSopClass();
+        if (!tc.getExtInfoBoolean(ExtQueryTransferCapability.RELATIONAL_QUERIES) && !containsUpperLevelUIDs(cuid)) {
+            return null;
+        }
+        LOG.info("Send Query Request using {}:\n{}", UIDDictionary.getDictionary().prompt(cuid), keys);
+        return assoc.cfind(cuid, priority, keys, selectTransferSyntax(tc), cancelAfter);
     }
 
     @SuppressWarnings("fallthrough")
@@ -1513,6 +1598,13 @@ public class DcmQR {
         return keylist;
     }
 
+    /**
+     * @return true if the remote AE has accepted relational queries for the FIND SOP class of the current query level
+     */
+    public boolean isRelationalQuery() throws NoPresentationContextException {
+        return selectFindTransferCapability().getExtInfoBoolean(ExtQueryTransferCapability.RELATIONAL_QUERIES);
+    }
+
     public TransferCapability selectFindTransferCapability() throws NoPresentationContextException {
         TransferCapability tc;
         if ((tc = selectTransferCapability(privateFind)) != null) {
@@ -1625,6 +1717,15 @@ public class DcmQR {
         assoc.release(true);
     }
 
+    /**
+     * Aborts the association, for instance when it is in an undefined state after an error.
+     */
+    public void abort() {
+        if (assoc != null) {
+            assoc.abort();
+        }
+    }
+
     public void setStoreDestination(String filePath) {
         this.storeDest = new File(filePath);
         this.devnull = "/dev/null".equals(filePath);
@@ -1633,6 +1734,14 @@ public class DcmQR {
         }
     }
 
+    /**
+     * Uses an SSL context already initialized instead of {@link #initTLS()}, the key stores are not loaded again and
+     * the TLS sessions of the context can be resumed.
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        device.setSSLContext(sslContext);
+    }
+
     public void initTLS() throws GeneralSecurityException, IOException {
         KeyStore keyStore = loadKeyStore(keyStoreURL, keyStorePassword);
         KeyStore trustStore = loadKeyStore(trustStoreURL, trustStorePassword);
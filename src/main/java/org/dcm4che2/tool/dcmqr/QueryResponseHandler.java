@@ -0,0 +1,22 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.dcm4che2.tool.dcmqr;
+
+import org.dcm4che2.data.DicomObject;
+
+/**
+ * Receives the matching entries of a C-FIND request one by one, as soon as each pending response is decoded. The
+ * dataset is not referenced anymore by the query after this call.
+ */
+public interface QueryResponseHandler {
+
+    void onResponse(DicomObject dataset);
+}
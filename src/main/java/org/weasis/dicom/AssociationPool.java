@@ -0,0 +1,620 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.dcm4che2.tool.dcmqr.DcmQR;
+import org.dcm4che2.tool.dcmqr.DcmQR.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.EncryptionTLS.TLS;
+
+/**
+ * Keeps the Q/R associations open between the calls, so the following queries and retrieves to the same node reuse
+ * them instead of opening a new association (and loading the TLS key stores) each time.
+ * <p>
+ * An association is reused only with the same {@link Key}: node, calling AET, TLS settings and negotiated SOP classes.
+ * The number of open associations is limited per node, the associations idle for longer than the idle timeout are
+ * released and an association idle for longer than the validation interval is checked with a C-ECHO before being
+ * reused.
+ * <p>
+ * The EncryptionTLS of a key must not be modified once the key is used.
+ */
+public class AssociationPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AssociationPool.class);
+
+    private final Map<Key, LinkedList<Entry>> idleEntries = new HashMap<Key, LinkedList<Entry>>();
+    private final Map<DcmQR, Entry> borrowedEntries = new IdentityHashMap<DcmQR, Entry>();
+    private final Map<DicomNode, Integer> openPerNode = new HashMap<DicomNode, Integer>();
+    private final Timer evictionTimer;
+
+    private int maxPerNode = 4;
+    private long idleTimeout = 60000;
+    private long validationInterval = 10000;
+    private long borrowTimeout = 30000;
+    private boolean closed = false;
+
+    private int nbBorrowed = 0;
+    private int nbCreated = 0;
+    private int nbEvicted = 0;
+    private int nbValidationFailures = 0;
+
+    public AssociationPool() {
+        this.evictionTimer = new Timer("AssociationPool eviction", true);
+        evictionTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, 5000, 5000);
+    }
+
+    public synchronized int getMaxPerNode() {
+        return maxPerNode;
+    }
+
+    /**
+     * Sets the maximum number of open associations (idle or in use) to a node.
+     */
+    public synchronized void setMaxPerNode(int maxPerNode) {
+        if (maxPerNode < 1) {
+            throw new IllegalArgumentException("maxPerNode must be at least 1");
+        }
+        this.maxPerNode = maxPerNode;
+        notifyAll();
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds after which an unused association is released.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public synchronized long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds after which an unused association is checked with a C-ECHO before being reused. 0
+     * checks the association each time.
+     */
+    public synchronized void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    public synchronized long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds waiting for an association when the limit per node is reached.
+     */
+    public synchronized void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * Returns an open association, reused from the pool or opened when no idle association matches the key. The
+     * association must be given back with {@link #release(DcmQR)} or {@link #invalidate(DcmQR)}.
+     * 
+     * @return the association or null when it cannot be opened
+     */
+    public DcmQR borrow(Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        while (true) {
+            Entry entry = null;
+            List<Entry> toClose = new ArrayList<Entry>();
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + borrowTimeout;
+                while (entry == null) {
+                    if (closed) {
+                        throw new IllegalStateException("The association pool is closed");
+                    }
+                    LinkedList<Entry> list = idleEntries.get(key);
+                    if (list != null && !list.isEmpty()) {
+                        // The most recently used association, the other ones can reach the idle timeout
+                        entry = list.removeLast();
+                        if (list.isEmpty()) {
+                            idleEntries.remove(key);
+                        }
+                    } else if (getOpen(key.node) < maxPerNode) {
+                        entry = new Entry(key);
+                        incrementOpen(key.node, 1);
+                    } else {
+                        Entry other = removeIdleEntry(key.node);
+                        if (other == null) {
+                            long wait = deadline - System.currentTimeMillis();
+                            if (wait <= 0) {
+                                LOGGER.error("ERROR: No association available for {} after {} s", key.node.getAet(),
+                                    Float.valueOf(borrowTimeout / 1000f));
+                                return null;
+                            }
+                            try {
+                                wait(wait);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return null;
+                            }
+                        } else {
+                            // Release an idle association negotiated for another purpose to free a slot of the node
+                            toClose.add(other);
+                            entry = new Entry(key);
+                            incrementOpen(key.node, 1);
+                        }
+                    }
+                }
+                nbBorrowed++;
+            }
+            close(toClose);
+
+            if (entry.dcmqr == null) {
+                DcmQR dcmqr = openAssociation(key, true);
+                synchronized (this) {
+                    if (dcmqr == null) {
+                        nbBorrowed--;
+                        incrementOpen(key.node, -1);
+                        notifyAll();
+                        return null;
+                    }
+                    nbCreated++;
+                    entry.dcmqr = dcmqr;
+                    entry.lastValidated = System.currentTimeMillis();
+                    borrowedEntries.put(dcmqr, entry);
+                }
+                return dcmqr;
+            }
+
+            if (validate(entry)) {
+                synchronized (this) {
+                    borrowedEntries.put(entry.dcmqr, entry);
+                }
+                return entry.dcmqr;
+            }
+            synchronized (this) {
+                nbBorrowed--;
+                nbValidationFailures++;
+                incrementOpen(key.node, -1);
+                notifyAll();
+            }
+            entry.dcmqr.abort();
+            LOGGER.info("Discarded a broken association to {}", key.node.getAet());
+        }
+    }
+
+    /**
+     * Gives back an association in a usable state, it can be reused by the next borrower.
+     */
+    public void release(DcmQR dcmqr) {
+        if (dcmqr == null) {
+            return;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = borrowedEntries.remove(dcmqr);
+            if (entry == null) {
+                throw new IllegalArgumentException("The association has not been borrowed from this pool");
+            }
+            if (!closed && dcmqr.isConnected()) {
+                entry.lastUsed = System.currentTimeMillis();
+                LinkedList<Entry> list = idleEntries.get(entry.key);
+                if (list == null) {
+                    list = new LinkedList<Entry>();
+                    idleEntries.put(entry.key, list);
+                }
+                list.add(entry);
+                notifyAll();
+                return;
+            }
+            incrementOpen(entry.key.node, -1);
+            notifyAll();
+        }
+        close(entry);
+    }
+
+    /**
+     * Gives back an association which cannot be reused (e.g. after a network error), the association is aborted.
+     */
+    public void invalidate(DcmQR dcmqr) {
+        if (dcmqr == null) {
+            return;
+        }
+        synchronized (this) {
+            Entry entry = borrowedEntries.remove(dcmqr);
+            if (entry == null) {
+                throw new IllegalArgumentException("The association has not been borrowed from this pool");
+            }
+            incrementOpen(entry.key.node, -1);
+            notifyAll();
+        }
+        dcmqr.abort();
+    }
+
+    /**
+     * Performs a C-ECHO on a pooled association.
+     * 
+     * @return true if the remote node has answered
+     */
+    public boolean echo(Key key) {
+        DcmQR dcmqr = borrow(key);
+        if (dcmqr == null) {
+            return false;
+        }
+        try {
+            dcmqr.echo();
+            release(dcmqr);
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("ERROR: Failed to perform echo:" + e.getMessage());
+            LOGGER.debug(e.getMessage(), e);
+            invalidate(dcmqr);
+            return false;
+        }
+    }
+
+    /**
+     * Releases the associations idle for longer than the idle timeout.
+     * 
+     * @return the number of released associations
+     */
+    public int evictIdle() {
+        List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            long limit = System.currentTimeMillis() - idleTimeout;
+            for (Iterator<LinkedList<Entry>> it = idleEntries.values().iterator(); it.hasNext();) {
+                LinkedList<Entry> list = it.next();
+                for (Iterator<Entry> it2 = list.iterator(); it2.hasNext();) {
+                    Entry entry = it2.next();
+                    if (entry.lastUsed < limit) {
+                        it2.remove();
+                        incrementOpen(entry.key.node, -1);
+                        toClose.add(entry);
+                    }
+                }
+                if (list.isEmpty()) {
+                    it.remove();
+                }
+            }
+            nbEvicted += toClose.size();
+            if (!toClose.isEmpty()) {
+                notifyAll();
+            }
+        }
+        close(toClose);
+        return toClose.size();
+    }
+
+    /**
+     * Releases all the idle associations, the associations in use are released when they are given back.
+     */
+    public void close() {
+        List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            evictionTimer.cancel();
+            for (LinkedList<Entry> list : idleEntries.values()) {
+                for (Entry entry : list) {
+                    incrementOpen(entry.key.node, -1);
+                    toClose.add(entry);
+                }
+            }
+            idleEntries.clear();
+            notifyAll();
+        }
+        close(toClose);
+        LOGGER.info(toString());
+    }
+
+    public synchronized int getNbBorrowed() {
+        return nbBorrowed;
+    }
+
+    public synchronized int getNbCreated() {
+        return nbCreated;
+    }
+
+    public synchronized int getNbReused() {
+        return nbBorrowed - nbCreated;
+    }
+
+    /**
+     * @return the ratio of the borrowed associations which have been reused (0 to 1)
+     */
+    public synchronized float getReuseRatio() {
+        return nbBorrowed == 0 ? 0f : (nbBorrowed - nbCreated) / (float) nbBorrowed;
+    }
+
+    public synchronized int getNbEvicted() {
+        return nbEvicted;
+    }
+
+    public synchronized int getNbValidationFailures() {
+        return nbValidationFailures;
+    }
+
+    /**
+     * @return the number of open associations, idle or in use
+     */
+    public synchronized int getNbOpen() {
+        int nb = 0;
+        for (Integer n : openPerNode.values()) {
+            nb += n;
+        }
+        return nb;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuffer buf = new StringBuffer("Association pool: ");
+        buf.append(nbBorrowed);
+        buf.append(" borrowed, ");
+        buf.append(nbCreated);
+        buf.append(" opened, reuse ratio ");
+        buf.append(Math.round(getReuseRatio() * 100f));
+        buf.append("%, ");
+        buf.append(nbEvicted);
+        buf.append(" evicted, ");
+        buf.append(nbValidationFailures);
+        buf.append(" failed validations, ");
+        buf.append(getNbOpen());
+        buf.append(" open");
+        return buf.toString();
+    }
+
+    private boolean validate(Entry entry) {
+        long now = System.currentTimeMillis();
+        if (!entry.dcmqr.isConnected()) {
+            return false;
+        }
+        if (now - entry.lastValidated < validationInterval && now - entry.lastUsed < validationInterval) {
+            return true;
+        }
+        try {
+            entry.dcmqr.echo();
+            entry.lastValidated = now;
+            return true;
+        } catch (Exception e) {
+            LOGGER.debug("C-ECHO failed: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private Entry removeIdleEntry(DicomNode node) {
+        for (Iterator<LinkedList<Entry>> it = idleEntries.values().iterator(); it.hasNext();) {
+            LinkedList<Entry> list = it.next();
+            if (!list.isEmpty() && list.getFirst().key.node.equals(node)) {
+                // The least recently used association of this key
+                Entry entry = list.removeFirst();
+                if (list.isEmpty()) {
+                    it.remove();
+                }
+                incrementOpen(node, -1);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private int getOpen(DicomNode node) {
+        Integer nb = openPerNode.get(node);
+        return nb == null ? 0 : nb;
+    }
+
+    private void incrementOpen(DicomNode node, int value) {
+        int nb = getOpen(node) + value;
+        if (nb > 0) {
+            openPerNode.put(node, nb);
+        } else {
+            openPerNode.remove(node);
+        }
+    }
+
+    private static void close(List<Entry> entries) {
+        for (Entry entry : entries) {
+            close(entry);
+        }
+    }
+
+    private static void close(Entry entry) {
+        try {
+            entry.dcmqr.close();
+            LOGGER.info("Released connection to " + entry.key.node.getAet());
+        } catch (Exception e) {
+            LOGGER.debug(e.getMessage(), e);
+            entry.dcmqr.abort();
+        }
+    }
+
+    /**
+     * Opens a Q/R association negotiating the C-FIND SOP classes (the study level covers the other levels), the C-MOVE
+     * SOP classes when the key has a move destination and the Verification SOP class when required.
+     * 
+     * @return the open association or null if it cannot be opened
+     */
+    static DcmQR openAssociation(Key key, boolean cecho) {
+        DcmQR qr = new DcmQR(key.callingAet);
+        qr.setCalledAET(key.node.getAet(), false);
+        qr.setRemoteHost(key.node.getHostname());
+        qr.setRemotePort(key.node.getPort());
+        qr.setPackPDV(true);
+        qr.setTcpNoDelay(true);
+        qr.setMaxOpsInvoked(key.maxOpsInvoked);
+        qr.setMaxOpsPerformed(0);
+        qr.setCFind(true);
+        qr.setCGet(false);
+        qr.setCEcho(cecho);
+        if (key.moveDest != null) {
+            qr.setMoveDest(key.moveDest);
+        }
+        // The study level negotiates all the FIND SOP classes used by the other levels
+        qr.setQueryLevel(QueryRetrieveLevel.STUDY);
+        qr.setRelationQR(key.relationQR);
+        qr.configureTransferCapability(false);
+
+        EncryptionTLS tls = key.tls;
+        if (tls != null) {
+            TLS cipher = tls.getTlsEncryption();
+            if (TLS.NO_ENCRYPTION.equals(cipher)) {
+                qr.setTlsWithoutEncyrption();
+            } else if (TLS.TLS_3DSE.equals(cipher)) {
+                qr.setTls3DES_EDE_CBC();
+            } else if (TLS.TLS_AES.equals(cipher)) {
+                qr.setTlsAES_128_CBC();
+            } else {
+                LOGGER.error("Invalid parameter for TLS encryption: " + cipher);
+                return null;
+            }
+
+            qr.setTlsProtocol(tls.getTlsProtocol());
+            qr.setTlsNeedClientAuth(tls.isNoclientauth());
+
+            try {
+                // The key stores are loaded once, the TLS sessions can be resumed by the next associations
+                qr.setSSLContext(SSLContextCache.getSSLContext(tls));
+            } catch (Exception e) {
+                LOGGER.error("ERROR: Failed to initialize TLS context:" + e.getMessage());
+                return null;
+            }
+        }
+
+        long t1 = System.currentTimeMillis();
+        try {
+            qr.open();
+        } catch (Exception e) {
+            LOGGER.error("ERROR: Failed to establish association:" + e.getMessage());
+            LOGGER.debug(e.getMessage(), e);
+            return null;
+        }
+        long t2 = System.currentTimeMillis();
+        LOGGER.info("Connected to {} in {} s", key.node.getAet(), Float.valueOf((t2 - t1) / 1000f));
+        return qr;
+    }
+
+    /**
+     * Identifies the associations which can be shared: same node, calling AET, TLS settings and negotiated SOP classes.
+     */
+    public static class Key {
+        private final DicomNode node;
+        private final String callingAet;
+        private final EncryptionTLS tls;
+        private final String moveDest;
+        private final boolean relationQR;
+        private final int maxOpsInvoked;
+
+        /**
+         * Key of a C-FIND association.
+         */
+        public Key(DicomNode node, String callingAet, EncryptionTLS tls, boolean relationQR, int maxOpsInvoked) {
+            this(node, callingAet, tls, null, relationQR, maxOpsInvoked);
+        }
+
+        /**
+         * @param moveDest
+         *            the destination AET of the C-MOVE requests, null when the association is only for C-FIND
+         */
+        public Key(DicomNode node, String callingAet, EncryptionTLS tls, String moveDest, boolean relationQR,
+            int maxOpsInvoked) {
+            if (node == null) {
+                throw new IllegalArgumentException("node cannot be null");
+            }
+            this.node = node;
+            this.callingAet = callingAet;
+            // Snapshot, the changes of the caller's settings must not modify the key of a pooled association
+            this.tls = tls == null ? null : new EncryptionTLS(tls);
+            this.moveDest = moveDest;
+            this.relationQR = relationQR;
+            this.maxOpsInvoked = maxOpsInvoked;
+        }
+
+        public DicomNode getNode() {
+            return node;
+        }
+
+        public String getCallingAet() {
+            return callingAet;
+        }
+
+        /**
+         * @return a copy of the TLS settings of the key
+         */
+        public EncryptionTLS getTls() {
+            return tls == null ? null : new EncryptionTLS(tls);
+        }
+
+        public String getMoveDest() {
+            return moveDest;
+        }
+
+        public boolean isRelationQR() {
+            return relationQR;
+        }
+
+        public int getMaxOpsInvoked() {
+            return maxOpsInvoked;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = node.hashCode();
+            result = 31 * result + (callingAet == null ? 0 : callingAet.hashCode());
+            result = 31 * result + (tls == null ? 0 : tls.hashCode());
+            result = 31 * result + (moveDest == null ? 0 : moveDest.hashCode());
+            result = 31 * result + (relationQR ? 1 : 0);
+            return 31 * result + maxOpsInvoked;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return node.equals(other.node) && relationQR == other.relationQR && maxOpsInvoked == other.maxOpsInvoked
+                && (callingAet == null ? other.callingAet == null : callingAet.equals(other.callingAet))
+                && (tls == null ? other.tls == null : tls.equals(other.tls))
+                && (moveDest == null ? other.moveDest == null : moveDest.equals(other.moveDest));
+        }
+    }
+
+    private static class Entry {
+        private final Key key;
+        private DcmQR dcmqr;
+        private long lastUsed;
+        private long lastValidated;
+
+        Entry(Key key) {
+            this.key = key;
+        }
+    }
+}
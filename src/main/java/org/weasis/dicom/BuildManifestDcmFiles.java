@@ -15,21 +15,36 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
 import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.io.StopTagInputHandler;
+import org.dcm4che2.io.DicomInputHandler;
 import org.dcm4che2.tool.dcm2jpg.Dcm2Jpg;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.weasis.dicom.util.CountingInputStream;
 import org.weasis.dicom.util.FileUtil;
 import org.weasis.launcher.wado.Patient;
 import org.weasis.launcher.wado.SOPInstance;
@@ -43,20 +58,38 @@ public class BuildManifestDcmFiles {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BuildManifestDcmFiles.class);
 
+    // Maximum number of files read in advance by each thread, the walk waits beyond it
+    private static final int PENDING_TASKS_PER_THREAD = 16;
+
+    private static volatile ThumbnailCache thumbnailCache = new ThumbnailCache(new File(System.getProperty(
+        "java.io.tmpdir", ""), "weasis-thumbnails"), 100L * 1024 * 1024);
+
     private final boolean recursive;
     private final File[] files;
     private final List<Patient> patientList;
+    private final Map<String, Patient> patientMap;
     private final Map<File, SOPInstance> dicomMap;
     private final Map<SOPInstance, File> dicomMapRev;
     private final Map<File, Series> thumbnailMap;
+    private final AtomicLong bytesRead;
+    private int parallelism = 1;
+    private int bufferSize = 8192;
+    private long maxHeaderBytes = 0;
+    private HeaderIndex headerIndex = null;
+    private final Map<File, ZipEntrySource> zipEntries;
+    private final List<ZipFile> zipFiles;
 
     public BuildManifestDcmFiles(File[] files, boolean recursive) {
         this.files = files.clone();
         this.recursive = recursive;
         this.patientList = new ArrayList<Patient>();
+        this.patientMap = new HashMap<String, Patient>();
         this.dicomMap = new HashMap<File, SOPInstance>();
         this.dicomMapRev = new HashMap<SOPInstance, File>();
         this.thumbnailMap = new HashMap<File, Series>();
+        this.bytesRead = new AtomicLong();
+        this.zipEntries = new HashMap<File, ZipEntrySource>();
+        this.zipFiles = new ArrayList<ZipFile>();
     }
 
     public Map<File, Series> getThumbnailMap() {
@@ -76,13 +109,99 @@ public class BuildManifestDcmFiles {
             return null;
         }
         patientList.clear();
+        patientMap.clear();
         dicomMap.clear();
         dicomMapRev.clear();
+        closeZipFiles();
+        bytesRead.set(0);
+        if (headerIndex != null) {
+            headerIndex.load();
+        }
         addSelectionAndnotify(files, true);
+        if (headerIndex != null) {
+            // A non-recursive scan does not look up the entries of the sub-directories
+            headerIndex.save(recursive ? files : null);
+        }
         return patientList;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads reading the DICOM headers. With 1 (default), the files are read sequentially by the
+     * calling thread. The model and the file maps are the same whatever the value.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism < 1 ? 1 : parallelism;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the buffer used to read each file. The default size (8 KB) contains the header of most of the
+     * files.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize < 512 ? 512 : bufferSize;
+    }
+
+    public long getMaxHeaderBytes() {
+        return maxHeaderBytes;
+    }
+
+    /**
+     * Sets the maximum number of bytes parsed in each file. The parsing stops before the first attribute which ends
+     * beyond this limit, so large private attributes preceding the required ones are not read. With 0 (default), there
+     * is no limit.
+     */
+    public void setMaxHeaderBytes(long maxHeaderBytes) {
+        this.maxHeaderBytes = maxHeaderBytes < 0 ? 0 : maxHeaderBytes;
+    }
+
+    /**
+     * @return the number of bytes read from the files by the last scan
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public HeaderIndex getHeaderIndex() {
+        return headerIndex;
+    }
+
+    /**
+     * Sets a persistent index of the headers. The files which have not changed since the previous scan are not parsed
+     * again. The index is saved at the end of {@link #getPatientList()}, the entries of the other directories are kept.
+     */
+    public void setHeaderIndex(HeaderIndex headerIndex) {
+        this.headerIndex = headerIndex;
+    }
+
     public void addSelectionAndnotify(File[] file, boolean firstLevel) {
+        if (parallelism > 1) {
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            LinkedList<HeaderTask> pending = new LinkedList<HeaderTask>();
+            long t1 = System.currentTimeMillis();
+            try {
+                scanFiles(file, firstLevel, executor, pending);
+                addHeaders(pending, 0);
+            } finally {
+                executor.shutdownNow();
+            }
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Read {} DICOM headers ({} bytes) with {} threads in {} s", new Object[] { dicomMap.size(),
+                    bytesRead.get(), parallelism, (System.currentTimeMillis() - t1) / 1000f });
+            }
+        } else {
+            scanFiles(file, firstLevel, null, null);
+        }
+    }
+
+    private void scanFiles(File[] file, boolean firstLevel, ExecutorService executor, LinkedList<HeaderTask> pending) {
         if (file == null || file.length < 1) {
             return;
         }
@@ -96,33 +215,186 @@ public class BuildManifestDcmFiles {
                 }
             } else {
                 if (file[i].canRead()) {
-                    readMetaData(file[i]);
+                    if (firstLevel && FileUtil.isZipFile(file[i])) {
+                        scanZipFile(file[i], executor, pending);
+                    } else {
+                        scanFile(file[i], null, executor, pending);
+                    }
                 }
             }
         }
         for (int i = 0; i < folders.size(); i++) {
-            addSelectionAndnotify(folders.get(i).listFiles(), false);
+            scanFiles(folders.get(i).listFiles(), false, executor, pending);
         }
     }
 
-    private Patient getPatient(final DicomObject dcm) throws Exception {
+    private void scanFile(File file, ZipEntrySource source, ExecutorService executor, LinkedList<HeaderTask> pending) {
+        if (executor == null) {
+            addMetaData(file, readHeader(file, source));
+        } else {
+            HeaderTask task = new HeaderTask(file, source);
+            pending.add(task);
+            executor.execute(task);
+            // Add to the model the headers already read, in the order of the files. Waits for the first one when too
+            // many files are pending, so the queue does not grow with the number of files.
+            addHeaders(pending, parallelism * PENDING_TASKS_PER_THREAD);
+        }
+    }
+
+    /**
+     * Reads the headers directly from the entries of the zip file, without extracting the archive. The entries are
+     * referenced in the model by a virtual file (zip file path + entry name), their content can be read with
+     * {@link #openInputStream(File)}.
+     */
+    private void scanZipFile(File file, ExecutorService executor, LinkedList<HeaderTask> pending) {
+        ZipFile zipFile = null;
+        try {
+            zipFile = new ZipFile(file);
+        } catch (IOException e) {
+            LOGGER.error("Cannot read zip file {}, {}", file, e.getMessage());
+            return;
+        }
+        // Kept open until the next scan or close() for extracting the entries on demand
+        zipFiles.add(zipFile);
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && (firstLevelEntry(entry) || recursive)) {
+                File entryFile = new File(file, entry.getName());
+                ZipEntrySource source = new ZipEntrySource(zipFile, entry);
+                zipEntries.put(entryFile, source);
+                scanFile(entryFile, source, executor, pending);
+            }
+        }
+    }
+
+    private static boolean firstLevelEntry(ZipEntry entry) {
+        return entry.getName().indexOf('/') < 0;
+    }
+
+    /**
+     * @return true if the file is a virtual file referencing an entry of a zip file
+     */
+    public boolean isZipEntry(File file) {
+        return zipEntries.containsKey(file);
+    }
+
+    /**
+     * Opens the content of a file of the model, extracting it from the zip file when it is a zip entry.
+     */
+    public InputStream openInputStream(File file) throws IOException {
+        ZipEntrySource source = zipEntries.get(file);
+        if (source == null) {
+            return new FileInputStream(file);
+        }
+        return source.getInputStream();
+    }
+
+    /**
+     * Reads the Number of Frames of a file of the model. This attribute is not read by the scan, it is only required
+     * for the images of the thumbnails.
+     * 
+     * @return the number of frames, 1 for a single frame image or when the file cannot be read
+     */
+    public int getNumberOfFrames(File file) {
+        DicomInputStream dis = null;
+        try {
+            dis = new DicomInputStream(new BufferedInputStream(openInputStream(file), bufferSize));
+            dis.setHandler(new StopTagInputHandler(Tag.NumberOfFrames + 1));
+            DicomObject dcm = dis.readDicomObject();
+            return Math.max(1, dcm.getInt(Tag.NumberOfFrames, 1));
+        } catch (IOException e) {
+            LOGGER.error("Cannot read the number of frames of {}, {}", file, e.getMessage());
+        } finally {
+            FileUtil.safeClose(dis);
+        }
+        return 1;
+    }
+
+    /**
+     * Returns a file on the file system with the content of a file of the model. A zip entry is extracted to a
+     * temporary file, which must be deleted by the caller.
+     * 
+     * @return the file itself, the extracted file or null if the entry cannot be extracted
+     */
+    public File getLocalFile(File file, File tmpDir) {
+        if (!isZipEntry(file)) {
+            return file;
+        }
+        File localFile = null;
+        InputStream in = null;
+        try {
+            localFile = File.createTempFile("dcm", ".dcm", tmpDir);
+            in = openInputStream(file);
+            // writeFile() closes the streams
+            if (FileUtil.writeFile(in, new FileOutputStream(localFile)) == -1) {
+                return localFile;
+            }
+        } catch (IOException e) {
+            FileUtil.safeClose(in);
+            LOGGER.error("Cannot extract {}, {}", file, e.getMessage());
+        }
+        if (localFile != null) {
+            localFile.delete();
+        }
+        return null;
+    }
+
+    /**
+     * Releases the zip files read by the last scan.
+     */
+    public void close() {
+        closeZipFiles();
+    }
+
+    private void closeZipFiles() {
+        for (ZipFile zipFile : zipFiles) {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                LOGGER.debug(e.getMessage());
+            }
+        }
+        zipFiles.clear();
+        zipEntries.clear();
+    }
+
+    /**
+     * Adds the headers read at the head of the queue, waiting for them while more than maxPending tasks are queued.
+     */
+    private void addHeaders(LinkedList<HeaderTask> pending, int maxPending) {
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.getFirst().isDone())) {
+            HeaderTask task = pending.removeFirst();
+            try {
+                addMetaData(task.getFile(), task.get());
+            } catch (InterruptedException e) {
+                LOGGER.error("Reading {} has been interrupted", task.getFile());
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                LOGGER.error("Cannot read {}, {}", task.getFile(), e.getMessage());
+            }
+        }
+    }
+
+    private Patient getPatient(final DicomObject dcm) {
         String id = dcm.getString(Tag.PatientID, "Unknown");
         String ispid = dcm.getString(Tag.IssuerOfPatientID);
-        for (Patient p : patientList) {
-            if (p.hasSameUniqueID(id, ispid)) {
-                return p;
-            }
+        Patient p = patientMap.get(Patient.getUniqueKey(id, ispid));
+        if (p != null) {
+            return p;
         }
-        Patient p = new Patient(id, ispid);
+        p = new Patient(id, ispid);
         p.setPatientName(dcm.getString(Tag.PatientName, "Unknown"));
         p.setPatientBirthDate(dcm.getString(Tag.PatientBirthDate));
         // p.setPatientBirthTime(patientDataset.getString(Tag.PatientBirthTime));
         p.setPatientSex(dcm.getString(Tag.PatientSex));
         patientList.add(p);
+        patientMap.put(p.getUniqueKey(), p);
         return p;
     }
 
-    private Study getStudy(Patient patient, final DicomObject dcm) throws Exception {
+    private Study getStudy(Patient patient, final DicomObject dcm) {
         String uid = dcm.getString(Tag.StudyInstanceUID);
         Study s = patient.getStudy(uid);
         if (s == null) {
@@ -138,7 +410,7 @@ public class BuildManifestDcmFiles {
         return s;
     }
 
-    private Series getSeries(Study study, final DicomObject dcm) throws Exception {
+    private Series getSeries(Study study, final DicomObject dcm) {
         String uid = dcm.getString(Tag.SeriesInstanceUID);
         Series s = study.getSeries(uid);
         if (s == null) {
@@ -151,36 +423,81 @@ public class BuildManifestDcmFiles {
         return s;
     }
 
-    private void readMetaData(File file) {
+    /**
+     * Reads the DICOM attributes required by the manifest, the transfer syntax of the file is set in the returned
+     * object. The parsing stops after the Instance Number or when the read cap is reached.
+     * 
+     * @param source
+     *            the zip entry of the file or null for a regular file
+     * @return the attributes or null if the file cannot be read, lacks the study/series UIDs or is a DICOMDIR
+     */
+    private DicomObject readHeader(File file, ZipEntrySource source) {
+        // The zip entries cannot be indexed, they have no size and modification time on the file system
+        boolean indexed = headerIndex != null && source == null;
+        if (indexed && headerIndex.contains(file)) {
+            return headerIndex.get(file);
+        }
         DicomInputStream dis = null;
+        CountingInputStream counter = null;
         try {
-            dis = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
-            dis.setHandler(new StopTagInputHandler(Tag.PixelData));
+            counter = new CountingInputStream(source == null ? new FileInputStream(file) : source.getInputStream());
+            dis = new DicomInputStream(new BufferedInputStream(counter, bufferSize));
+            HeaderInputHandler handler = new HeaderInputHandler(maxHeaderBytes);
+            dis.setHandler(handler);
             DicomObject dcm = dis.readDicomObject();
             // Exclude DICOMDIR
             if (dcm == null || "1.2.840.10008.1.3.10".equals(dcm.getString(Tag.MediaStorageSOPClassUID, ""))) {
-                return;
+                dcm = null;
+            } else if (dcm.getString(Tag.StudyInstanceUID) == null || dcm.getString(Tag.SeriesInstanceUID) == null) {
+                if (handler.isCapReached()) {
+                    LOGGER.error("Cannot read {}, read cap of {} bytes reached before the Study or Series Instance UID",
+                        file, maxHeaderBytes);
+                } else {
+                    LOGGER.error("Cannot read {}, missing Study or Series Instance UID", file);
+                }
+                dcm = null;
+            } else {
+                dcm.putString(Tag.TransferSyntaxUID, VR.UI, dis.getTransferSyntax().uid());
             }
-
-            Patient patient = getPatient(dcm);
-            Study study = getStudy(patient, dcm);
-            Series s = getSeries(study, dcm);
-            String sopUID = dcm.getString(Tag.SOPInstanceUID);
-            if (sopUID != null) {
-                SOPInstance sop = new SOPInstance(sopUID);
-                sop.setTransferSyntaxUID(dis.getTransferSyntax().uid());
-                sop.setInstanceNumber(dcm.getString(Tag.InstanceNumber));
-                s.addSOPInstance(sop);
-                dicomMap.put(file, sop);
-                dicomMapRev.put(sop, file);
+            // The index does not record the cap, a truncated header must be read again by the next scans
+            if (indexed && !handler.isCapReached()) {
+                headerIndex.put(file, dcm);
             }
+            return dcm;
         } catch (Exception e) {
             // TODO record problem?
             LOGGER.error("Cannot read {}, {}", file, e.getMessage());
         } finally {
             FileUtil.safeClose(dis);
+            if (counter != null) {
+                bytesRead.addAndGet(counter.getCount());
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Read {} bytes from {}", counter.getCount(), file);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void addMetaData(File file, DicomObject dcm) {
+        if (dcm == null) {
+            return;
+        }
+        Patient patient = getPatient(dcm);
+        Study study = getStudy(patient, dcm);
+        Series s = getSeries(study, dcm);
+        String sopUID = dcm.getString(Tag.SOPInstanceUID);
+        if (sopUID != null) {
+            SOPInstance sop = new SOPInstance(sopUID);
+            sop.setTransferSyntaxUID(dcm.getString(Tag.TransferSyntaxUID));
+            sop.setInstanceNumber(dcm.getString(Tag.InstanceNumber));
+            if (s.addSOPInstance(sop)) {
+                dicomMap.put(file, sop);
+                dicomMapRev.put(sop, file);
+            } else {
+                LOGGER.warn("Duplicate SOPInstanceUID {}, {} is ignored", sopUID, file);
+            }
         }
-        return;
     }
 
     public static void buildThumbnail(File dicom, File thumbnail, int maxSize, int quality) {
@@ -206,20 +523,40 @@ public class BuildManifestDcmFiles {
         }
     }
 
+    public static ThumbnailCache getThumbnailCache() {
+        return thumbnailCache;
+    }
+
+    /**
+     * Sets the disk cache of the thumbnails built by {@link #buildManifest(File)}.
+     */
+    public static void setThumbnailCache(ThumbnailCache cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException("cache cannot be null!");
+        }
+        thumbnailCache = cache;
+    }
+
     public static void buildManifest(File file) {
         File tmpDir = new File(System.getProperty("java.io.tmpdir", ""));
-        File dicoms = null;
-        if (FileUtil.isZipFile(file)) {
-            dicoms = new File(tmpDir, FileUtil.nameWithoutExtension(file.getName()));
-            FileUtil.unzip(file, dicoms);
-        } else {
-            // Should be a DICOM file
-            dicoms = file;
-        }
-        if (dicoms != null) {
-            BuildManifestDcmFiles dicomReader = new BuildManifestDcmFiles(new File[] { dicoms }, true);
+        // A zip file is read directly, without extracting the archive
+        BuildManifestDcmFiles dicomReader = new BuildManifestDcmFiles(new File[] { file }, true);
+        dicomReader.setParallelism(Runtime.getRuntime().availableProcessors());
+        try {
             List<Patient> patients = dicomReader.getPatientList();
+            if (patients == null || patients.size() < 1) {
+                LOGGER.warn("No data has been found!");
+                return;
+            }
+
+            // The thumbnails are built in background while preparing the manifest, which references only the thumbnails
+            // built successfully
+            ThumbnailBuilder thumbnails =
+                new ThumbnailBuilder(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 4,
+                    256, 75);
+            String renderKey = thumbnails.getRenderKey();
             Map<File, Series> thumMap = dicomReader.getThumbnailMap();
+            Map<Future<File>, Series> builtThumbnails = new IdentityHashMap<Future<File>, Series>();
             for (Patient patient : patients) {
                 for (Study study : patient.getStudies()) {
                     for (Series series : study.getSeriesList()) {
@@ -228,45 +565,60 @@ public class BuildManifestDcmFiles {
                             series.sortByInstanceNumber();
                             SOPInstance uid = list.get(list.size() / 2);
                             if (uid != null) {
-                                File thumb = null;
-                                try {
-                                    thumb = File.createTempFile("thumb", ".jpg", tmpDir);
-
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                File dicomFile = dicomReader.getDicomMapRev().get(uid);
-                                if (dicomFile != null && thumb != null) {
-                                    BuildManifestDcmFiles.buildThumbnail(dicomFile, thumb, 256, 75);
+                                File thumb = thumbnailCache.getFile(uid.getSOPInstanceIUID(), renderKey);
+                                if (thumbnailCache.contains(thumb)) {
+                                    // Already built for the same image and parameters, no pixel data to decode
                                     thumMap.put(thumb, series);
+                                } else {
+                                    File dicomFile = dicomReader.getDicomMapRev().get(uid);
+                                    // The directory of the cache is created by the first thumbnail to build
+                                    if (dicomFile != null && thumbnailCache.mkdirs()) {
+                                        // The middle frame of a multi-frame image (the first one is often blank)
+                                        int frameIndex = dicomReader.getNumberOfFrames(dicomFile) / 2;
+                                        File localFile = dicomReader.getLocalFile(dicomFile, tmpDir);
+                                        if (localFile != null) {
+                                            builtThumbnails.put(
+                                                thumbnails.submit(localFile, frameIndex, thumb, localFile != dicomFile),
+                                                series);
+                                        }
+                                    }
                                 }
                             }
                         }
                     }
                 }
             }
-            if (patients == null || patients.size() < 1) {
-                LOGGER.warn("No data has been found!");
-                return;
-            }
 
             Map<File, SOPInstance> dicomMap = dicomReader.getDicomMap();
             for (Iterator<Entry<File, SOPInstance>> iter = dicomMap.entrySet().iterator(); iter.hasNext();) {
                 Entry<File, SOPInstance> element = iter.next();
                 File dicomFile = element.getKey();
-                // TODO store dicomFile
+                // TODO store dicomFile (read the content with dicomReader.openInputStream(), it can be a zip entry)
                 // Can set the full URL or only the end part, the base part can be set below in wadoURL
                 // TODO replace urlFromStore
                 element.getValue().setDirectDownloadFile("urlFromStore");
             }
 
+            for (Entry<Future<File>, Series> element : builtThumbnails.entrySet()) {
+                try {
+                    // null when the image cannot be decoded, the series has then no thumbnail
+                    File thumb = element.getKey().get();
+                    if (thumb != null) {
+                        thumMap.put(thumb, element.getValue());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    LOGGER.error("Cannot build thumbnail, {}", e.getMessage());
+                }
+            }
+
             for (Iterator<Entry<File, Series>> iter = thumMap.entrySet().iterator(); iter.hasNext();) {
                 Entry<File, Series> element = iter.next();
-                File thumbFile = element.getKey();
-                // TODO store thumbFile
                 // Can set the full URL or only the end part, the base part can be set below in wadoURL
-                // TODO replace urlFromStore
-                element.getValue().setThumbnail("urlFromStore");
+                // TODO replace by the URL of the cache directory
+                element.getValue().setThumbnail(element.getKey().getName());
             }
 
             File manifestFile = null;
@@ -274,10 +626,10 @@ public class BuildManifestDcmFiles {
                 manifestFile = File.createTempFile("mft", ".gz", tmpDir);
             } catch (IOException e1) {
                 LOGGER.error("Cannot create the manifest file, {}", e1.getMessage());
+                thumbnails.shutdown();
                 return;
             }
             FileOutputStream stream = null;
-            GZIPOutputStream gz = null;
             try {
                 // If the web server requires an authentication (pacs.web.login=user:pwd)
                 String webLogin = null;
@@ -304,26 +656,100 @@ public class BuildManifestDcmFiles {
 
                 // Set gzip compression to the manifest
                 stream = new FileOutputStream(manifestFile);
-                gz = new GZIPOutputStream(stream);
-                gz.write(wadoQuery.toString().getBytes());
+                wadoQuery.writeGzip(stream);
                 LOGGER.info("The manifest has been created: {}", manifestFile);
             } catch (Exception e) {
                 LOGGER.error("Cannot write the manifest, {}", e.getMessage());
             } catch (WadoQueryException e) {
                 LOGGER.error("Cannot build the manifest, {}", e.getMessage());
             } finally {
-                FileUtil.safeClose(gz);
                 FileUtil.safeClose(stream);
             }
 
+            thumbnails.shutdown();
+            thumbnailCache.evict();
+
             // TODO Store the manifest "manifestFile"
-            // Delete the temporary directory
-            FileUtil.deleteDirectory(tmpDir);
             // TODO if not a zip but just DICOM file, delete the source ?
-            if (tmpDir != dicoms) {
-                // file.delete();
+        } finally {
+            dicomReader.close();
+        }
+    }
+
+    /**
+     * Stops the parsing after the last attribute required by the manifest (Instance Number) or before an attribute
+     * ending beyond the read cap.
+     */
+    private static class HeaderInputHandler implements DicomInputHandler {
+
+        private static final long STOP_TAG = (Tag.InstanceNumber & 0xffffffffL) + 1;
+
+        private final long maxBytes;
+        private boolean capReached = false;
+
+        HeaderInputHandler(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return true if the parsing has been stopped by the read cap
+         */
+        boolean isCapReached() {
+            return capReached;
+        }
+
+        public boolean readValue(DicomInputStream in) throws IOException {
+            if (in.level() == 0) {
+                if ((in.tag() & 0xffffffffL) >= STOP_TAG) {
+                    return false;
+                }
+                if (maxBytes > 0 && in.getStreamPosition() + Math.max(in.valueLength(), 0) > maxBytes) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Read cap of {} bytes reached at tag {}", maxBytes, Integer.toHexString(in.tag()));
+                    }
+                    capReached = true;
+                    return false;
+                }
             }
+            return in.readValue(in);
+        }
+    }
+
+    private static class ZipEntrySource {
+
+        private final ZipFile zipFile;
+        private final ZipEntry entry;
+
+        ZipEntrySource(ZipFile zipFile, ZipEntry entry) {
+            this.zipFile = zipFile;
+            this.entry = entry;
+        }
+
+        InputStream getInputStream() throws IOException {
+            InputStream in = zipFile.getInputStream(entry);
+            if (in == null) {
+                throw new IOException("Cannot find the zip entry " + entry.getName());
+            }
+            return in;
+        }
+    }
+
+    private class HeaderTask extends FutureTask<DicomObject> {
+
+        private final File file;
+
+        HeaderTask(final File file, final ZipEntrySource source) {
+            super(new Callable<DicomObject>() {
+
+                public DicomObject call() throws Exception {
+                    return readHeader(file, source);
+                }
+            });
+            this.file = file;
+        }
 
+        File getFile() {
+            return file;
         }
     }
 }
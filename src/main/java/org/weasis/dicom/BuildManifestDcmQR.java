@@ -10,17 +10,15 @@
  ******************************************************************************/
 package org.weasis.dicom;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
-import org.dcm4che2.tool.dcmqr.DcmQR;
 import org.dcm4che2.tool.dcmqr.DcmQR.QueryRetrieveLevel;
+import org.dcm4che2.tool.dcmqr.QueryResponseHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.weasis.dicom.EncryptionTLS.TLS;
 import org.weasis.dicom.util.FileUtil;
 import org.weasis.launcher.wado.Patient;
 import org.weasis.launcher.wado.SOPInstance;
@@ -38,7 +36,68 @@ public class BuildManifestDcmQR {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BuildManifestDcmQR.class);
 
+    // Attributes required for building the series and the instances of the manifest
+    private static final String[] SERIES_RETURN_KEYS = { Integer.toHexString(Tag.SeriesInstanceUID),
+        Integer.toHexString(Tag.Modality), Integer.toHexString(Tag.SeriesNumber),
+        Integer.toHexString(Tag.SeriesDescription) };
+    private static final String[] INSTANCE_RETURN_KEYS = { Integer.toHexString(Tag.SOPInstanceUID),
+        Integer.toHexString(Tag.InstanceNumber) };
+    private static final String[] STUDY_CONTENT_RETURN_KEYS = { Integer.toHexString(Tag.SeriesInstanceUID),
+        Integer.toHexString(Tag.Modality), Integer.toHexString(Tag.SeriesNumber),
+        Integer.toHexString(Tag.SeriesDescription), Integer.toHexString(Tag.SOPInstanceUID),
+        Integer.toHexString(Tag.InstanceNumber) };
+
+    private static volatile QueryCache queryCache;
+    private static volatile AssociationPool associationPool;
+
+    public static QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Sets the cache used by the methods which open their own query session. Null disables the cache.
+     */
+    public static void setQueryCache(QueryCache cache) {
+        queryCache = cache;
+    }
+
+    public static AssociationPool getAssociationPool() {
+        return associationPool;
+    }
+
+    /**
+     * Sets the pool of associations used by the methods which open their own query session. Null opens a new
+     * association for each call.
+     */
+    public static void setAssociationPool(AssociationPool pool) {
+        associationPool = pool;
+    }
+
+    private static QuerySession newSession(DicomNode nodeSource, String callingAet) {
+        return newSession(nodeSource, null, callingAet, true);
+    }
+
+    // The image level queries of the series are pipelined up to QuerySession.DEFAULT_MAX_OPS_INVOKED outstanding
+    // requests, or sent one after the other when the remote node negotiates a single operation
+    private static QuerySession newSession(DicomNode nodeSource, EncryptionTLS tls, String callingAet,
+        boolean relationQR) {
+        QuerySession session = new QuerySession(nodeSource, tls, callingAet, relationQR);
+        session.setQueryCache(queryCache);
+        session.setAssociationPool(associationPool);
+        return session;
+    }
+
     public static List<Patient> buildFromPatientID(final List<Patient> ptList, DicomNode nodeSource, String callingAet,
+        String patientID) throws Exception {
+        QuerySession session = newSession(nodeSource, callingAet);
+        try {
+            return buildFromPatientID(ptList, session, patientID);
+        } finally {
+            session.close();
+        }
+    }
+
+    public static List<Patient> buildFromPatientID(final List<Patient> ptList, QuerySession session,
         String patientID) throws Exception {
         if (patientID == null || patientID.trim().equals("")) {
             return null;
@@ -47,7 +106,10 @@ public class BuildManifestDcmQR {
         String[] returnKeys =
             { Integer.toHexString(Tag.IssuerOfPatientID), Integer.toHexString(Tag.PatientName),
                 Integer.toHexString(Tag.PatientBirthDate), Integer.toHexString(Tag.PatientSex),
-                Integer.toHexString(Tag.ReferringPhysicianName), Integer.toHexString(Tag.StudyDescription) };
+                Integer.toHexString(Tag.ReferringPhysicianName), Integer.toHexString(Tag.StudyDescription),
+                Integer.toHexString(Tag.StudyInstanceUID), Integer.toHexString(Tag.StudyDate),
+                Integer.toHexString(Tag.StudyTime), Integer.toHexString(Tag.AccessionNumber),
+                Integer.toHexString(Tag.StudyID) };
         String[] matchingKeys;
         int beginIndex = patientID.indexOf("^^^");
         int offset = 3;
@@ -66,120 +128,140 @@ public class BuildManifestDcmQR {
             matchingKeys = new String[] { Integer.toHexString(Tag.PatientID), patientID };
         }
 
-        List<DicomObject> studies =
-            query(nodeSource, null, callingAet, QueryRetrieveLevel.STUDY, true, matchingKeys, returnKeys);
+        List<DicomObject> studies = session.query(QueryRetrieveLevel.STUDY, matchingKeys, returnKeys);
         List<Patient> patientList = ptList == null ? new ArrayList<Patient>() : ptList;
         if (studies != null) {
+            boolean studyContentQuery = isStudyContentQuery(session);
+            List<Study> studyList = new ArrayList<Study>();
+            List<Series> seriesList = new ArrayList<Series>();
+            List<String[]> instanceKeys = new ArrayList<String[]>();
             for (DicomObject studyDataSet : studies) {
                 String studyInstanceUID = studyDataSet.getString(Tag.StudyInstanceUID);
                 if (studyInstanceUID != null && !"".equals(studyInstanceUID.trim())) {
                     // Get patient from each study in case IssuerOfPatientID is different
                     Patient patient = getPatient(patientList, studyDataSet);
                     Study study = getStudy(patient, studyDataSet);
+                    if (studyContentQuery) {
+                        studyList.add(study);
+                        continue;
+                    }
                     List<DicomObject> series =
-                        query(nodeSource, null, callingAet, QueryRetrieveLevel.SERIES, true,
+                        session.query(QueryRetrieveLevel.SERIES,
                             new String[] { Integer.toHexString(Tag.StudyInstanceUID), studyInstanceUID },
-                            new String[] { Integer.toHexString(Tag.SeriesDescription) });
+                            SERIES_RETURN_KEYS);
                     if (series != null) {
                         for (DicomObject seriesDataset : series) {
                             String serieInstanceUID = seriesDataset.getString(Tag.SeriesInstanceUID);
                             if (serieInstanceUID != null && !"".equals(serieInstanceUID.trim())) {
-                                Series s = getSeries(study, seriesDataset);
-                                List<DicomObject> instances =
-                                    query(nodeSource, null, callingAet, QueryRetrieveLevel.IMAGE, true,
-                                        new String[] { Integer.toHexString(Tag.StudyInstanceUID), studyInstanceUID,
-                                            Integer.toHexString(Tag.SeriesInstanceUID), serieInstanceUID }, null);
-                                if (instances != null) {
-                                    for (DicomObject instanceDataSet : instances) {
-                                        String sopUID = instanceDataSet.getString(Tag.SOPInstanceUID);
-                                        if (sopUID != null) {
-                                            SOPInstance sop = new SOPInstance(sopUID);
-                                            sop.setInstanceNumber(instanceDataSet.getString(Tag.InstanceNumber));
-                                            s.addSOPInstance(sop);
-                                        }
-                                    }
-                                }
+                                seriesList.add(getSeries(study, seriesDataset));
+                                instanceKeys.add(new String[] { Integer.toHexString(Tag.StudyInstanceUID),
+                                    studyInstanceUID, Integer.toHexString(Tag.SeriesInstanceUID), serieInstanceUID });
                             }
                         }
                     }
                 }
             }
+            addStudyContent(session, studyList);
+            addInstances(session, seriesList, instanceKeys);
         }
         return patientList;
     }
 
     public static List<Patient> buildFromStudyInstanceUID(final List<Patient> ptList, DicomNode nodeSource,
         String callingAet, String studyInstanceUID) throws Exception {
+        QuerySession session = newSession(nodeSource, callingAet);
+        try {
+            return buildFromStudyInstanceUID(ptList, session, studyInstanceUID);
+        } finally {
+            session.close();
+        }
+    }
+
+    public static List<Patient> buildFromStudyInstanceUID(final List<Patient> ptList, QuerySession session,
+        String studyInstanceUID) throws Exception {
         if (studyInstanceUID == null || studyInstanceUID.trim().equals("")) {
             return null;
         }
         String[] matchingKeys = { Integer.toHexString(Tag.StudyInstanceUID), studyInstanceUID };
-        return buildFromStudylevel(ptList, nodeSource, callingAet, matchingKeys, Tag.StudyInstanceUID);
+        return buildFromStudylevel(ptList, session, matchingKeys, Tag.StudyInstanceUID);
     }
 
     public static List<Patient> buildFromStudyAccessionNumber(final List<Patient> ptList, DicomNode nodeSource,
         String callingAet, String accessionNumber) throws Exception {
+        QuerySession session = newSession(nodeSource, callingAet);
+        try {
+            return buildFromStudyAccessionNumber(ptList, session, accessionNumber);
+        } finally {
+            session.close();
+        }
+    }
+
+    public static List<Patient> buildFromStudyAccessionNumber(final List<Patient> ptList, QuerySession session,
+        String accessionNumber) throws Exception {
         if (accessionNumber == null || accessionNumber.trim().equals("")) {
             return null;
         }
         String[] matchingKeys = { Integer.toHexString(Tag.AccessionNumber), accessionNumber };
-        return buildFromStudylevel(ptList, nodeSource, callingAet, matchingKeys, Tag.AccessionNumber);
+        return buildFromStudylevel(ptList, session, matchingKeys, Tag.AccessionNumber);
     }
 
-    private static List<Patient> buildFromStudylevel(final List<Patient> ptList, DicomNode nodeSource,
-        String callingAet, String[] matchingKeys, int tag) throws Exception {
+    private static List<Patient> buildFromStudylevel(final List<Patient> ptList, QuerySession session,
+        String[] matchingKeys, int tag) throws Exception {
         String[] returnKeys =
             { Integer.toHexString(Tag.PatientName), Integer.toHexString(Tag.PatientID),
                 Integer.toHexString(Tag.IssuerOfPatientID), Integer.toHexString(Tag.PatientBirthDate),
                 Integer.toHexString(Tag.PatientSex), Integer.toHexString(Tag.ReferringPhysicianName),
-                Integer.toHexString(Tag.StudyDescription) };
-        List<DicomObject> studies =
-            query(nodeSource, null, callingAet, QueryRetrieveLevel.STUDY, true, matchingKeys, returnKeys);
+                Integer.toHexString(Tag.StudyDescription), Integer.toHexString(Tag.StudyInstanceUID),
+                Integer.toHexString(Tag.StudyDate), Integer.toHexString(Tag.StudyTime),
+                Integer.toHexString(Tag.AccessionNumber), Integer.toHexString(Tag.StudyID) };
+        List<DicomObject> studies = session.query(QueryRetrieveLevel.STUDY, matchingKeys, returnKeys);
         List<Patient> patientList = ptList == null ? new ArrayList<Patient>() : ptList;
         if (studies != null && studies.size() > 0) {
             Patient patient = getPatient(patientList, studies.get(0));
+            boolean studyContentQuery = isStudyContentQuery(session);
+            List<Study> studyList = new ArrayList<Study>();
+            List<Series> seriesList = new ArrayList<Series>();
+            List<String[]> instanceKeys = new ArrayList<String[]>();
             for (DicomObject studyDataSet : studies) {
                 if (matchingKeys[1].equals(studyDataSet.getString(tag))) {
                     Study study = getStudy(patient, studyDataSet);
+                    if (studyContentQuery) {
+                        studyList.add(study);
+                        continue;
+                    }
                     List<DicomObject> series =
-                        query(nodeSource, null, callingAet, QueryRetrieveLevel.SERIES, true, matchingKeys,
-                            new String[] { Integer.toHexString(Tag.SeriesDescription) });
+                        session.query(QueryRetrieveLevel.SERIES, matchingKeys, SERIES_RETURN_KEYS);
                     if (series != null) {
                         for (DicomObject seriesDataset : series) {
                             String seriesInstanceUID = seriesDataset.getString(Tag.SeriesInstanceUID);
                             if (seriesInstanceUID != null && !"".equals(seriesInstanceUID.trim())) {
-                                Series s = getSeries(study, seriesDataset);
-                                List<DicomObject> instances =
-                                    query(
-                                        nodeSource,
-                                        null,
-                                        callingAet,
-                                        QueryRetrieveLevel.IMAGE,
-                                        true,
-                                        new String[] { Integer.toHexString(Tag.StudyInstanceUID),
-                                            study.getStudyInstanceUID(), Integer.toHexString(Tag.SeriesInstanceUID),
-                                            seriesInstanceUID }, null);
-                                if (instances != null) {
-                                    for (DicomObject instanceDataSet : instances) {
-                                        String sopUID = instanceDataSet.getString(Tag.SOPInstanceUID);
-                                        if (sopUID != null) {
-                                            SOPInstance sop = new SOPInstance(sopUID);
-                                            sop.setInstanceNumber(instanceDataSet.getString(Tag.InstanceNumber));
-                                            s.addSOPInstance(sop);
-                                        }
-                                    }
-                                }
+                                seriesList.add(getSeries(study, seriesDataset));
+                                instanceKeys.add(new String[] { Integer.toHexString(Tag.StudyInstanceUID),
+                                    study.getStudyInstanceUID(), Integer.toHexString(Tag.SeriesInstanceUID),
+                                    seriesInstanceUID });
                             }
                         }
                     }
                 }
             }
+            addStudyContent(session, studyList);
+            addInstances(session, seriesList, instanceKeys);
         }
         return patientList;
     }
 
     public static List<Patient> buildFromSeriesInstanceUID(final List<Patient> ptList, DicomNode nodeSource,
         String callingAet, String seriesInstanceUID) throws Exception {
+        QuerySession session = newSession(nodeSource, callingAet);
+        try {
+            return buildFromSeriesInstanceUID(ptList, session, seriesInstanceUID);
+        } finally {
+            session.close();
+        }
+    }
+
+    public static List<Patient> buildFromSeriesInstanceUID(final List<Patient> ptList, QuerySession session,
+        String seriesInstanceUID) throws Exception {
         if (seriesInstanceUID == null || seriesInstanceUID.trim().equals("")) {
             return null;
         }
@@ -190,10 +272,11 @@ public class BuildManifestDcmQR {
                 Integer.toHexString(Tag.PatientSex), Integer.toHexString(Tag.StudyDate),
                 Integer.toHexString(Tag.StudyTime), Integer.toHexString(Tag.AccessionNumber),
                 Integer.toHexString(Tag.ReferringPhysicianName), Integer.toHexString(Tag.StudyDescription),
-                Integer.toHexString(Tag.SeriesDescription), Integer.toHexString(Tag.StudyInstanceUID) };
+                Integer.toHexString(Tag.SeriesDescription), Integer.toHexString(Tag.StudyInstanceUID),
+                Integer.toHexString(Tag.StudyID), Integer.toHexString(Tag.Modality),
+                Integer.toHexString(Tag.SeriesNumber) };
 
-        List<DicomObject> series =
-            query(nodeSource, null, callingAet, QueryRetrieveLevel.SERIES, true, matchingKeys, returnKeys);
+        List<DicomObject> series = session.query(QueryRetrieveLevel.SERIES, matchingKeys, returnKeys);
         List<Patient> patientList = ptList == null ? new ArrayList<Patient>() : ptList;
         if (series != null && series.size() > 0) {
             DicomObject dataset = series.get(0);
@@ -202,20 +285,10 @@ public class BuildManifestDcmQR {
             for (DicomObject seriesDataset : series) {
                 if (seriesInstanceUID.equals(seriesDataset.getString(Tag.SeriesInstanceUID))) {
                     Series s = getSeries(study, seriesDataset);
-                    List<DicomObject> instances =
-                        query(nodeSource, null, callingAet, QueryRetrieveLevel.IMAGE, true,
-                            new String[] { Integer.toHexString(Tag.StudyInstanceUID), study.getStudyInstanceUID(),
-                                Integer.toHexString(Tag.SeriesInstanceUID), seriesInstanceUID }, null);
-                    if (instances != null) {
-                        for (DicomObject instanceDataSet : instances) {
-                            String sopUID = instanceDataSet.getString(Tag.SOPInstanceUID);
-                            if (sopUID != null) {
-                                SOPInstance sop = new SOPInstance(sopUID);
-                                sop.setInstanceNumber(instanceDataSet.getString(Tag.InstanceNumber));
-                                s.addSOPInstance(sop);
-                            }
-                        }
-                    }
+                    session.query(QueryRetrieveLevel.IMAGE,
+                        new String[] { Integer.toHexString(Tag.StudyInstanceUID), study.getStudyInstanceUID(),
+                            Integer.toHexString(Tag.SeriesInstanceUID), seriesInstanceUID }, INSTANCE_RETURN_KEYS,
+                        new InstanceHandler(s));
                 }
             }
         }
@@ -224,6 +297,16 @@ public class BuildManifestDcmQR {
 
     public static List<Patient> buildFromSopInstanceUID(final List<Patient> ptList, DicomNode nodeSource,
         String callingAet, String sopInstanceUID) throws Exception {
+        QuerySession session = newSession(nodeSource, callingAet);
+        try {
+            return buildFromSopInstanceUID(ptList, session, sopInstanceUID);
+        } finally {
+            session.close();
+        }
+    }
+
+    public static List<Patient> buildFromSopInstanceUID(final List<Patient> ptList, QuerySession session,
+        String sopInstanceUID) throws Exception {
         if (sopInstanceUID == null || sopInstanceUID.trim().equals("")) {
             return null;
         }
@@ -236,29 +319,68 @@ public class BuildManifestDcmQR {
                 Integer.toHexString(Tag.Modality), Integer.toHexString(Tag.ReferringPhysicianName),
                 Integer.toHexString(Tag.StudyDescription), Integer.toHexString(Tag.SeriesDescription),
                 Integer.toHexString(Tag.StudyInstanceUID), Integer.toHexString(Tag.SeriesInstanceUID),
-                Integer.toHexString(Tag.StudyID), Integer.toHexString(Tag.SeriesNumber) };
-        List<Patient> patientList = ptList == null ? new ArrayList<Patient>() : ptList;
-        List<DicomObject> instances =
-            query(nodeSource, null, callingAet, QueryRetrieveLevel.IMAGE, true, matchingKeys, returnKeys);
-        if (instances != null && instances.size() > 0) {
-            DicomObject dataset = instances.get(0);
-            Patient patient = getPatient(patientList, dataset);
-            Study study = getStudy(patient, dataset);
-            Series s = getSeries(study, dataset);
-            for (DicomObject instanceDataSet : instances) {
-                String sopUID = instanceDataSet.getString(Tag.SOPInstanceUID);
-                if (sopUID != null) {
-                    SOPInstance sop = new SOPInstance(sopUID);
-                    sop.setInstanceNumber(instanceDataSet.getString(Tag.InstanceNumber));
-                    s.addSOPInstance(sop);
+                Integer.toHexString(Tag.StudyID), Integer.toHexString(Tag.SeriesNumber),
+                Integer.toHexString(Tag.InstanceNumber) };
+        final List<Patient> patientList = ptList == null ? new ArrayList<Patient>() : ptList;
+        session.query(QueryRetrieveLevel.IMAGE, matchingKeys, returnKeys, new QueryResponseHandler() {
+
+            private Series series;
+
+            public void onResponse(DicomObject dataset) {
+                if (series == null) {
+                    Patient patient = getPatient(patientList, dataset);
+                    Study study = getStudy(patient, dataset);
+                    series = getSeries(study, dataset);
                 }
+                addInstance(series, dataset);
             }
-        }
+        });
         return patientList;
     }
 
-    protected static Patient getPatient(final List<Patient> patientList, final DicomObject patientDataset)
-        throws Exception {
+    private static void addInstances(QuerySession session, List<Series> seriesList, List<String[]> instanceKeys) {
+        if (seriesList.isEmpty()) {
+            return;
+        }
+        List<InstanceHandler> handlers = new ArrayList<InstanceHandler>(seriesList.size());
+        for (Series series : seriesList) {
+            handlers.add(new InstanceHandler(series));
+        }
+        // The image level queries of all the series are sent without waiting for the previous responses
+        session.queryAll(QueryRetrieveLevel.IMAGE, instanceKeys, INSTANCE_RETURN_KEYS, handlers);
+    }
+
+    private static void addInstance(Series series, DicomObject instanceDataSet) {
+        String sopUID = instanceDataSet.getString(Tag.SOPInstanceUID);
+        if (sopUID != null) {
+            SOPInstance sop = new SOPInstance(sopUID);
+            sop.setInstanceNumber(instanceDataSet.getString(Tag.InstanceNumber));
+            series.addSOPInstance(sop);
+        }
+    }
+
+    private static boolean isStudyContentQuery(QuerySession session) {
+        return session.isLeanQuery() && session.isRelationalQuery(QueryRetrieveLevel.IMAGE);
+    }
+
+    /*
+     * Builds the series and the instances of each study with a single image level query (requires relational
+     * queries).
+     */
+    private static void addStudyContent(QuerySession session, List<Study> studyList) {
+        if (studyList.isEmpty()) {
+            return;
+        }
+        List<String[]> studyKeys = new ArrayList<String[]>(studyList.size());
+        List<StudyContentHandler> handlers = new ArrayList<StudyContentHandler>(studyList.size());
+        for (Study study : studyList) {
+            studyKeys.add(new String[] { Integer.toHexString(Tag.StudyInstanceUID), study.getStudyInstanceUID() });
+            handlers.add(new StudyContentHandler(study));
+        }
+        session.queryAll(QueryRetrieveLevel.IMAGE, studyKeys, STUDY_CONTENT_RETURN_KEYS, handlers);
+    }
+
+    protected static Patient getPatient(final List<Patient> patientList, final DicomObject patientDataset) {
         if (patientDataset == null) {
             throw new IllegalArgumentException("patientDataset cannot be null");
         }
@@ -278,7 +400,7 @@ public class BuildManifestDcmQR {
         return p;
     }
 
-    protected static Study getStudy(Patient patient, final DicomObject studyDataset) throws Exception {
+    protected static Study getStudy(Patient patient, final DicomObject studyDataset) {
         if (studyDataset == null) {
             throw new IllegalArgumentException("studyDataset cannot be null");
         }
@@ -297,7 +419,7 @@ public class BuildManifestDcmQR {
         return s;
     }
 
-    protected static Series getSeries(Study study, final DicomObject seriesDataset) throws Exception {
+    protected static Series getSeries(Study study, final DicomObject seriesDataset) {
         if (seriesDataset == null) {
             throw new IllegalArgumentException("seriesDataset cannot be null");
         }
@@ -313,123 +435,56 @@ public class BuildManifestDcmQR {
         return s;
     }
 
+    public static boolean query(DicomNode nodeSource, EncryptionTLS tls, String callingAet, QueryRetrieveLevel level,
+        boolean relationQR, String[] matchingKeys, String[] returnKeys, QueryResponseHandler handler) {
+        QuerySession session = newSession(nodeSource, tls, callingAet, relationQR);
+        try {
+            return session.query(level, matchingKeys, returnKeys, handler);
+        } finally {
+            session.close();
+        }
+    }
+
     public static List<DicomObject> query(DicomNode nodeSource, EncryptionTLS tls, String callingAet,
         QueryRetrieveLevel level, boolean relationQR, String[] matchingKeys, String[] returnKeys) {
-        List<DicomObject> result = new ArrayList<DicomObject>();
-        DcmQR dcmqr = new DcmQR(callingAet);
-        boolean init = initQuery(nodeSource, tls, dcmqr, level, relationQR, matchingKeys, returnKeys);
-        if (!init) {
-            return null;
-        }
+        QuerySession session = newSession(nodeSource, tls, callingAet, relationQR);
         try {
-            if (dcmqr.isCFind()) {
-                long t2 = System.currentTimeMillis();
-                result = dcmqr.query();
-                LOGGER.info("Received {} matching entries in {} s", Integer.valueOf(result.size()),
-                    Float.valueOf((System.currentTimeMillis() - t2) / 1000f));
-            }
-            LOGGER.info("Released connection to " + nodeSource.getAet());
-        } catch (IOException e) {
-            LOGGER.error("ERROR: Failed to perform c-find:" + e.getMessage());
-            LOGGER.debug(e.getMessage(), e);
-            return null;
-        } catch (InterruptedException e) {
-            LOGGER.error("ERROR: Failed to execute c-find:" + e.getMessage());
-            LOGGER.debug(e.getMessage(), e);
-            return null;
+            return session.query(level, matchingKeys, returnKeys);
         } finally {
-            try {
-                dcmqr.close();
-            } catch (InterruptedException e) {
-            }
+            session.close();
         }
-        return result;
     }
 
-    private static boolean initQuery(DicomNode nodeSource, EncryptionTLS tls, DcmQR dcmqr, QueryRetrieveLevel level,
-        boolean relationQR, String[] matchingKeys, String[] returnKeys) {
-        if (nodeSource == null && matchingKeys == null || (matchingKeys.length % 2) != 0) {
-            throw new IllegalArgumentException();
-        }
-        if (level == null) {
-            level = QueryRetrieveLevel.STUDY;
-        }
-        dcmqr.setCalledAET(nodeSource.getAet(), false);
-        dcmqr.setRemoteHost(nodeSource.getHostname());
-        dcmqr.setRemotePort(nodeSource.getPort());
-        dcmqr.setPackPDV(true);
-        dcmqr.setTcpNoDelay(true);
-        dcmqr.setMaxOpsInvoked(1);
-        dcmqr.setMaxOpsPerformed(0);
-        dcmqr.setCFind(true);
-        dcmqr.setCGet(false);
-        dcmqr.setQueryLevel(level);
-        // Add the default return keys for the selected query level
-        dcmqr.addDefReturnKeys();
-        dcmqr.setRelationQR(relationQR);
-        // Manifest fields
-        for (int i = 1; i < matchingKeys.length; i++, i++) {
-            dcmqr.addMatchingKey(Tag.toTagPath(matchingKeys[i - 1]), matchingKeys[i]);
-        }
-        // DICOM fields to return
-        if (returnKeys != null) {
-            for (int i = 0; i < returnKeys.length; i++) {
-                dcmqr.addReturnKey(Tag.toTagPath(returnKeys[i]));
-            }
+    /**
+     * Adds each instance to the series as soon as it is received.
+     */
+    private static class InstanceHandler implements QueryResponseHandler {
+        private final Series series;
+
+        InstanceHandler(Series series) {
+            this.series = series;
         }
 
-        dcmqr.configureTransferCapability(false);
+        public void onResponse(DicomObject dataset) {
+            addInstance(series, dataset);
+        }
+    }
 
-        if (tls != null) {
-            TLS cipher = tls.getTlsEncryption();
-            if (TLS.NO_ENCRYPTION.equals(cipher)) {
-                dcmqr.setTlsWithoutEncyrption();
-            } else if (TLS.TLS_3DSE.equals(cipher)) {
-                dcmqr.setTls3DES_EDE_CBC();
-            } else if (TLS.TLS_AES.equals(cipher)) {
-                dcmqr.setTlsAES_128_CBC();
-            } else {
-                LOGGER.error("Invalid parameter for TLS encryption: " + cipher);
-                return false;
-            }
+    /**
+     * Adds each instance to its series (created if necessary) as soon as it is received.
+     */
+    private static class StudyContentHandler implements QueryResponseHandler {
+        private final Study study;
 
-            dcmqr.setTlsProtocol(tls.getTlsProtocol());
-            dcmqr.setTlsNeedClientAuth(tls.isNoclientauth());
+        StudyContentHandler(Study study) {
+            this.study = study;
+        }
 
-            if (tls.getKeystore() != null) {
-                dcmqr.setKeyStoreURL(tls.getKeystore());
-            }
-            if (tls.getKeystorepw() != null) {
-                dcmqr.setKeyStorePassword(tls.getKeystorepw());
-            }
-            if (tls.getKeypw() != null) {
-                dcmqr.setKeyPassword(tls.getKeypw());
-            }
-            if (tls.getTruststore() != null) {
-                dcmqr.setTrustStoreURL(tls.getTruststore());
-            }
-            if (tls.getTruststorepw() != null) {
-                dcmqr.setTrustStorePassword(tls.getTruststorepw());
-            }
-            try {
-                dcmqr.initTLS();
-            } catch (Exception e) {
-                LOGGER.error("ERROR: Failed to initialize TLS context:" + e.getMessage());
-                return false;
+        public void onResponse(DicomObject dataset) {
+            String seriesInstanceUID = dataset.getString(Tag.SeriesInstanceUID);
+            if (seriesInstanceUID != null && !"".equals(seriesInstanceUID.trim())) {
+                addInstance(getSeries(study, dataset), dataset);
             }
         }
-
-        long t1 = System.currentTimeMillis();
-        try {
-            dcmqr.open();
-        } catch (Exception e) {
-            LOGGER.error("ERROR: Failed to establish association:" + e.getMessage());
-            LOGGER.debug(e.getMessage(), e);
-            return false;
-        }
-        long t2 = System.currentTimeMillis();
-        LOGGER.info("Connected to {} in {} s", nodeSource.getAet(), Float.valueOf((t2 - t1) / 1000f));
-        return true;
     }
-
 }
@@ -26,6 +26,7 @@ import org.dcm4che2.tool.dcmmover.DcmMoverCli;
 import org.dcm4che2.tool.dcmmover.MoveResponse;
 import org.dcm4che2.tool.dcmmover.ObjectTransformData;
 import org.dcm4che2.tool.dcmqr.DcmQR;
+import org.dcm4che2.tool.dcmqr.DcmQR.QueryRetrieveLevel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.dicom.EncryptionTLS.TLS;
@@ -44,6 +45,19 @@ public class CMove {
 
     private static final Logger log = LoggerFactory.getLogger(CMove.class);
 
+    private static volatile AssociationPool associationPool;
+
+    public static AssociationPool getAssociationPool() {
+        return associationPool;
+    }
+
+    /**
+     * Sets the pool of associations used by the c-move methods. Null opens a new association for each call.
+     */
+    public static void setAssociationPool(AssociationPool pool) {
+        associationPool = pool;
+    }
+
     public static boolean cmove(DicomNode calledNode, String callingAet, String destinationAet, String patientID,
         String studyInstanceUID, String seriesInstanceUID) {
         return cmove(calledNode, null, callingAet, destinationAet, patientID, studyInstanceUID, seriesInstanceUID);
@@ -60,11 +74,12 @@ public class CMove {
 
     public static boolean cmove(DicomNode calledNode, EncryptionTLS tls, String callingAet, String destinationAet,
         String patientID, String studyInstanceUID, String seriesInstanceUID) {
-        DcmQR dcmqr = new DcmQR(callingAet);
-        boolean init = initMove(calledNode, tls, dcmqr, destinationAet);
-        if (!init) {
+        AssociationPool pool = associationPool;
+        DcmQR dcmqr = openMove(pool, calledNode, tls, callingAet, destinationAet);
+        if (dcmqr == null) {
             return false;
         }
+        boolean success = false;
         try {
             List<DicomObject> result = new ArrayList<DicomObject>();
             BasicDicomObject dcm = new BasicDicomObject();
@@ -74,22 +89,17 @@ public class CMove {
             dcm.putString(Tag.SeriesInstanceUID, VR.UI, seriesInstanceUID);
             result.add(dcm);
             dcmqr.move(result);
-            log.info("Released connection to " + calledNode.getAet());
+            success = true;
         } catch (IOException e) {
             log.error("ERROR: Failed to perform c-move:" + e.getMessage());
             log.debug(e.getMessage(), e);
-            return false;
         } catch (InterruptedException e) {
             log.error("ERROR: Failed to execute c-move:" + e.getMessage());
             log.debug(e.getMessage(), e);
-            return false;
         } finally {
-            try {
-                dcmqr.close();
-            } catch (InterruptedException e) {
-            }
+            closeMove(pool, dcmqr, calledNode, success);
         }
-        return true;
+        return success;
     }
 
     public static boolean cmove(DicomNode calledNode, EncryptionTLS tls, String callingAet, String destinationAet,
@@ -98,41 +108,72 @@ public class CMove {
             log.error("Manifest data for c-move cannot be null");
             return false;
         }
-        DcmQR dcmqr = new DcmQR(callingAet);
-        boolean init = initMove(calledNode, tls, dcmqr, destinationAet);
-        if (!init) {
+        AssociationPool pool = associationPool;
+        DcmQR dcmqr = openMove(pool, calledNode, tls, callingAet, destinationAet);
+        if (dcmqr == null) {
             return false;
         }
 
         dcmqr.setQueryLevel(data.getQueryRetrieveLevel());
+        dcmqr.clearKeys();
         for (MatchingAttribute entry : data.getAttributes()) {
 
             dcmqr.addMatchingKey(new int[] { entry.getTag() }, entry.getValue());
         }
 
+        boolean success = false;
+        boolean usable = false;
         try {
             List<DicomObject> result = dcmqr.query();
             if (result.isEmpty()) {
+                usable = true;
                 log.warn("DICOM query does not contain enough information for c-move");
                 return false;
             }
             dcmqr.move(result);
-            log.info("Released connection to " + calledNode.getAet());
+            success = true;
         } catch (IOException e) {
             log.error("Failed to perform c-move:" + e.getMessage());
             log.debug(e.getMessage(), e);
-            return false;
         } catch (InterruptedException e) {
             log.error("Failed to execute c-move:" + e.getMessage());
             log.debug(e.getMessage(), e);
-            return false;
         } finally {
+            closeMove(pool, dcmqr, calledNode, success || usable);
+        }
+        return success;
+    }
+
+    private static DcmQR openMove(AssociationPool pool, DicomNode calledNode, EncryptionTLS tls, String callingAet,
+        String destinationAet) {
+        if (pool == null) {
+            DcmQR dcmqr = new DcmQR(callingAet);
+            return initMove(calledNode, tls, dcmqr, destinationAet) ? dcmqr : null;
+        }
+        DcmQR dcmqr = pool.borrow(new AssociationPool.Key(calledNode, callingAet, tls, destinationAet, false, 1));
+        if (dcmqr != null) {
+            // Reset the state of the previous user
+            dcmqr.setQueryLevel(QueryRetrieveLevel.STUDY);
+            dcmqr.clearKeys();
+        }
+        return dcmqr;
+    }
+
+    /**
+     * Releases the association or gives it back to the pool when it is still usable.
+     */
+    private static void closeMove(AssociationPool pool, DcmQR dcmqr, DicomNode calledNode, boolean usable) {
+        if (pool == null) {
             try {
                 dcmqr.close();
+                log.info("Released connection to " + calledNode.getAet());
             } catch (InterruptedException e) {
             }
+        } else if (usable) {
+            pool.release(dcmqr);
+        } else {
+            pool.invalidate(dcmqr);
         }
-        return true;
     }
 
     private static boolean initMove(DicomNode calledNode, EncryptionTLS tls, DcmQR dcmqr, String destinationAet) {
@@ -166,23 +207,9 @@ public class CMove {
             dcmqr.setTlsProtocol(tls.getTlsProtocol());
             dcmqr.setTlsNeedClientAuth(tls.isNoclientauth());
 
-            if (tls.getKeystore() != null) {
-                dcmqr.setKeyStoreURL(tls.getKeystore());
-            }
-            if (tls.getKeystorepw() != null) {
-                dcmqr.setKeyStorePassword(tls.getKeystorepw());
-            }
-            if (tls.getKeypw() != null) {
-                dcmqr.setKeyPassword(tls.getKeypw());
-            }
-            if (tls.getTruststore() != null) {
-                dcmqr.setTrustStoreURL(tls.getTruststore());
-            }
-            if (tls.getTruststorepw() != null) {
-                dcmqr.setTrustStorePassword(tls.getTruststorepw());
-            }
             try {
-                dcmqr.initTLS();
+                // The key stores are loaded once, the TLS sessions can be resumed by the next associations
+                dcmqr.setSSLContext(SSLContextCache.getSSLContext(tls));
             } catch (Exception e) {
                 log.error("ERROR: Failed to initialize TLS context:" + e.getMessage());
                 return false;
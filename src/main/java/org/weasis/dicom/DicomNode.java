@@ -35,6 +35,26 @@ public class DicomNode {
         return port;
     }
 
+    @Override
+    public int hashCode() {
+        int result = aet == null ? 0 : aet.hashCode();
+        result = 31 * result + (hostname == null ? 0 : hostname.hashCode());
+        return 31 * result + port;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DicomNode)) {
+            return false;
+        }
+        DicomNode other = (DicomNode) obj;
+        return port == other.port && (aet == null ? other.aet == null : aet.equals(other.aet))
+            && (hostname == null ? other.hostname == null : hostname.equals(other.hostname));
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer("Hostname:");
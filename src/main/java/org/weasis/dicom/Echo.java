@@ -26,6 +26,17 @@ public class Echo {
         return echoTLS(callingAET, node, null);
     }
 
+    /**
+     * Performs a C-ECHO on an association of the pool (the association used by the C-FIND queries to this node), so a
+     * periodic check of the node does not open a new association each time.
+     */
+    public static boolean echo(AssociationPool pool, String callingAET, DicomNode node, EncryptionTLS tls) {
+        if (pool == null) {
+            return echoTLS(callingAET, node, tls);
+        }
+        return pool.echo(new AssociationPool.Key(node, callingAET, tls, true, 1));
+    }
+
     public static boolean echoTLS(String callingAET, DicomNode node, EncryptionTLS tls) {
         DcmEcho dcmecho = new DcmEcho(callingAET);
         dcmecho.setCalledAET(node.getAet(), false);
@@ -48,23 +59,9 @@ public class Echo {
             dcmecho.setTlsProtocol(tls.getTlsProtocol());
             dcmecho.setTlsNeedClientAuth(tls.isNoclientauth());
 
-            if (tls.getKeystore() != null) {
-                dcmecho.setKeyStoreURL(tls.getKeystore());
-            }
-            if (tls.getKeystorepw() != null) {
-                dcmecho.setKeyStorePassword(tls.getKeystorepw());
-            }
-            if (tls.getKeypw() != null) {
-                dcmecho.setKeyPassword(tls.getKeypw());
-            }
-            if (tls.getTruststore() != null) {
-                dcmecho.setTrustStoreURL(tls.getTruststore());
-            }
-            if (tls.getTruststorepw() != null) {
-                dcmecho.setTrustStorePassword(tls.getTruststorepw());
-            }
             try {
-                dcmecho.initTLS();
+                // The key stores are loaded once, the TLS sessions can be resumed by the next associations
+                dcmecho.setSSLContext(SSLContextCache.getSSLContext(tls));
             } catch (Exception e) {
                 log.error("ERROR: Failed to initialize TLS context:" + e.getMessage());
                 return false;
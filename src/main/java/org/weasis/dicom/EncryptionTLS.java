@@ -10,6 +10,8 @@
  ******************************************************************************/
 package org.weasis.dicom;
 
+import java.util.Arrays;
+
 public class EncryptionTLS {
 
     public static final String[] TLS1 = { "TLSv1" };
@@ -46,6 +48,20 @@ public class EncryptionTLS {
         this.truststorepw = truststorepw;
     }
 
+    /**
+     * Creates a copy of the TLS settings, which is not affected by the later changes of the original.
+     */
+    public EncryptionTLS(EncryptionTLS tls) {
+        this.tlsEncryption = tls.tlsEncryption;
+        this.noclientauth = tls.noclientauth;
+        this.keystore = tls.keystore;
+        this.keystorepw = tls.keystorepw;
+        this.keypw = tls.keypw;
+        this.truststore = tls.truststore;
+        this.truststorepw = tls.truststorepw;
+        this.tlsProtocol = tls.tlsProtocol == null ? null : tls.tlsProtocol.clone();
+    }
+
     public String[] getTlsProtocol() {
         return tlsProtocol;
     }
@@ -90,4 +106,35 @@ public class EncryptionTLS {
         return tlsEncryption;
     }
 
+    /**
+     * The TLS settings are mutable, a copy must be used as key of a map (see {@link AssociationPool.Key}).
+     */
+    @Override
+    public int hashCode() {
+        int result = tlsEncryption == null ? 0 : tlsEncryption.hashCode();
+        result = 31 * result + (keystore == null ? 0 : keystore.hashCode());
+        result = 31 * result + (truststore == null ? 0 : truststore.hashCode());
+        result = 31 * result + Arrays.hashCode(tlsProtocol);
+        return 31 * result + (noclientauth ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EncryptionTLS)) {
+            return false;
+        }
+        EncryptionTLS other = (EncryptionTLS) obj;
+        return tlsEncryption == other.tlsEncryption && noclientauth == other.noclientauth
+            && equals(keystore, other.keystore) && equals(keystorepw, other.keystorepw) && equals(keypw, other.keypw)
+            && equals(truststore, other.truststore) && equals(truststorepw, other.truststorepw)
+            && Arrays.equals(tlsProtocol, other.tlsProtocol);
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
 }
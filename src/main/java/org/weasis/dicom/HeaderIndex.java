@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.util.FileUtil;
+
+/**
+ * Persistent index of the DICOM attributes required by the manifest, keyed by the path, the size and the last
+ * modification time of the files. A file which has not changed since it has been indexed does not need to be parsed
+ * again.
+ * <p>
+ * The index is stored in a compact binary file. When saving, the entries of the deleted files are removed from the
+ * index, as well as the entries under the scanned directories which have not been looked up or added since the last
+ * save.
+ */
+public class HeaderIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HeaderIndex.class);
+
+    // Must be incremented when the format or the list of attributes changes
+    private static final int VERSION = 1;
+    private static final int MAGIC = 0x57484958;
+
+    // The Specific Character Set must be the first one for encoding the other values
+    private static final int[] TAGS = { Tag.SpecificCharacterSet, Tag.TransferSyntaxUID, Tag.PatientID,
+        Tag.IssuerOfPatientID, Tag.PatientName, Tag.PatientBirthDate, Tag.PatientSex, Tag.StudyInstanceUID,
+        Tag.StudyDescription, Tag.StudyDate, Tag.StudyTime, Tag.AccessionNumber, Tag.StudyID,
+        Tag.ReferringPhysicianName, Tag.SeriesInstanceUID, Tag.Modality, Tag.SeriesNumber, Tag.SeriesDescription,
+        Tag.SOPInstanceUID, Tag.InstanceNumber };
+    private static final VR[] VRS = { VR.CS, VR.UI, VR.LO, VR.LO, VR.PN, VR.DA, VR.CS, VR.UI, VR.LO, VR.DA, VR.TM,
+        VR.SH, VR.SH, VR.PN, VR.UI, VR.CS, VR.IS, VR.LO, VR.UI, VR.IS };
+
+    private final File indexFile;
+    private final Map<String, Record> records;
+    private boolean loaded = false;
+    private boolean modified = false;
+
+    public HeaderIndex(File indexFile) {
+        if (indexFile == null) {
+            throw new IllegalArgumentException("indexFile cannot be null!");
+        }
+        this.indexFile = indexFile;
+        this.records = new HashMap<String, Record>();
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * @return true if the file has been indexed and has not changed since
+     */
+    public synchronized boolean contains(File file) {
+        Record record = getRecord(file);
+        if (record != null) {
+            record.touched = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the indexed attributes of the file or null if the file is not indexed, has changed since or is not a
+     *         DICOM file of the manifest
+     */
+    public synchronized DicomObject get(File file) {
+        Record record = getRecord(file);
+        if (record == null || record.values == null) {
+            return null;
+        }
+        record.touched = true;
+        DicomObject dcm = new BasicDicomObject();
+        for (int i = 0; i < TAGS.length; i++) {
+            if (record.values[i] != null) {
+                dcm.putStrings(TAGS[i], VRS[i], record.values[i]);
+            }
+        }
+        return dcm;
+    }
+
+    /**
+     * Indexes the attributes of the file.
+     * 
+     * @param dcm
+     *            the attributes of the file, null when the file must not be added to the manifest (e.g. DICOMDIR)
+     */
+    public synchronized void put(File file, DicomObject dcm) {
+        String[][] values = null;
+        if (dcm != null) {
+            values = new String[TAGS.length][];
+            for (int i = 0; i < TAGS.length; i++) {
+                values[i] = dcm.getStrings(TAGS[i]);
+            }
+        }
+        Record record = new Record(file.length(), file.lastModified(), values);
+        record.touched = true;
+        records.put(file.getAbsolutePath(), record);
+        modified = true;
+    }
+
+    private Record getRecord(File file) {
+        Record record = records.get(file.getAbsolutePath());
+        if (record != null && record.size == file.length() && record.lastModified == file.lastModified()) {
+            return record;
+        }
+        return null;
+    }
+
+    /**
+     * Loads the index file if it has not been loaded yet. An unreadable or obsolete index is ignored.
+     */
+    public synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!indexFile.canRead()) {
+            return;
+        }
+        long t1 = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), FileUtil.FILE_BUFFER));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.info("Ignore the obsolete header index {}", indexFile);
+                return;
+            }
+            int nbRecords = in.readInt();
+            for (int k = 0; k < nbRecords; k++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String[][] values = null;
+                if (in.readBoolean()) {
+                    values = new String[TAGS.length][];
+                    for (int i = 0; i < TAGS.length; i++) {
+                        int nbValues = in.readShort();
+                        if (nbValues >= 0) {
+                            values[i] = new String[nbValues];
+                            for (int j = 0; j < nbValues; j++) {
+                                values[i][j] = in.readUTF();
+                            }
+                        }
+                    }
+                }
+                records.put(path, new Record(size, lastModified, values));
+            }
+            LOGGER.info("Loaded {} entries of the header index in {} s", nbRecords,
+                (System.currentTimeMillis() - t1) / 1000f);
+        } catch (IOException e) {
+            LOGGER.error("Cannot read the header index {}, {}", indexFile, e.getMessage());
+            records.clear();
+        } finally {
+            FileUtil.safeClose(in);
+        }
+    }
+
+    /**
+     * Writes the index file, the entries of the files which no longer exist are removed.
+     * 
+     * @return false if the index cannot be written
+     */
+    public synchronized boolean save() {
+        return save(null);
+    }
+
+    /**
+     * Writes the index file. The entries of the files which no longer exist are removed, as well as the entries under
+     * the scanned files or directories which have not been looked up or added since the last save. The entries of the
+     * other directories are kept.
+     * 
+     * @param scannedFiles
+     *            the files or directories of the scan, can be null
+     * @return false if the index cannot be written
+     */
+    public synchronized boolean save(File[] scannedFiles) {
+        String[] roots = getRootPaths(scannedFiles);
+        boolean removed = false;
+        for (Iterator<Entry<String, Record>> iter = records.entrySet().iterator(); iter.hasNext();) {
+            Entry<String, Record> entry = iter.next();
+            Record record = entry.getValue();
+            if (record.touched) {
+                record.touched = false;
+            } else if (isUnder(entry.getKey(), roots) || !new File(entry.getKey()).exists()) {
+                iter.remove();
+                removed = true;
+            }
+        }
+        if (!modified && !removed && indexFile.exists()) {
+            return true;
+        }
+
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            File parent = indexFile.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), FileUtil.FILE_BUFFER));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            for (Entry<String, Record> entry : records.entrySet()) {
+                Record record = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(record.size);
+                out.writeLong(record.lastModified);
+                out.writeBoolean(record.values != null);
+                if (record.values != null) {
+                    for (String[] val : record.values) {
+                        if (val == null) {
+                            out.writeShort(-1);
+                        } else {
+                            out.writeShort(val.length);
+                            for (String v : val) {
+                                out.writeUTF(v == null ? "" : v);
+                            }
+                        }
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if (indexFile.exists() && !indexFile.delete() || !tmpFile.renameTo(indexFile)) {
+                LOGGER.error("Cannot replace the header index {}", indexFile);
+                return false;
+            }
+            modified = false;
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Cannot write the header index {}, {}", indexFile, e.getMessage());
+            return false;
+        } finally {
+            FileUtil.safeClose(out);
+            tmpFile.delete();
+        }
+    }
+
+    private static String[] getRootPaths(File[] files) {
+        if (files == null) {
+            return new String[0];
+        }
+        String[] paths = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            paths[i] = files[i] == null ? null : files[i].getAbsolutePath();
+        }
+        return paths;
+    }
+
+    private static boolean isUnder(String path, String[] roots) {
+        for (String root : roots) {
+            if (root != null && path.startsWith(root)) {
+                // Not a sibling with the same prefix (e.g. /data/dir2 for /data/dir)
+                if (path.length() == root.length() || root.endsWith(File.separator)
+                    || path.charAt(root.length()) == File.separatorChar) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class Record {
+        private final long size;
+        private final long lastModified;
+        // null when the file is not part of the manifest
+        private final String[][] values;
+        private boolean touched = false;
+
+        Record(long size, long lastModified, String[][] values) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import java.util.List;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.tool.dcmqr.DcmQR.QueryRetrieveLevel;
+
+/**
+ * Cache of C-FIND results. The matching keys and the return keys have the same syntax as in
+ * {@link QuerySession#query(QueryRetrieveLevel, String[], String[])}. A result is shared only by the sessions having
+ * the same configuration (node, calling AET, relational queries, lean mode), which get the same responses from the remote node.
+ */
+public interface QueryCache {
+
+    /**
+     * @return the cached matching entries, or null if the query is not in the cache or has expired
+     */
+    List<DicomObject> get(QuerySession session, QueryRetrieveLevel level, String[] matchingKeys, String[] returnKeys);
+
+    void put(QuerySession session, QueryRetrieveLevel level, String[] matchingKeys, String[] returnKeys,
+        List<DicomObject> result);
+
+    /**
+     * @return true if the remote node has accepted relational queries for the level, or null if unknown or expired
+     */
+    Boolean getRelationalQuery(QuerySession session, QueryRetrieveLevel level);
+
+    /**
+     * Keeps the relational query support negotiated by the association of the session, so a session finding all its
+     * queries in the cache does not need to open an association.
+     */
+    void putRelationalQuery(QuerySession session, QueryRetrieveLevel level, boolean accepted);
+
+    /**
+     * Removes all the entries whose matching keys or results refer to the study.
+     */
+    void invalidateStudy(String studyInstanceUID);
+
+    void clear();
+
+    long getHitCount();
+
+    long getMissCount();
+}
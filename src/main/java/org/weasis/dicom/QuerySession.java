@@ -0,0 +1,440 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.net.DimseRSP;
+import org.dcm4che2.net.NoPresentationContextException;
+import org.dcm4che2.tool.dcmqr.DcmQR;
+import org.dcm4che2.tool.dcmqr.DcmQR.QueryRetrieveLevel;
+import org.dcm4che2.tool.dcmqr.QueryResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A C-FIND session bound to one DICOM node. The association is opened on the first query and is reused for all the
+ * following queries (whatever the query level) until {@link #close()} is called.
+ *
+ * The presentation contexts are negotiated for the study level, which covers the SOP classes required by the
+ * patient, series and image levels.
+ *
+ * With an {@link AssociationPool}, the association is borrowed from the pool and given back by {@link #close()}.
+ */
+public class QuerySession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuerySession.class);
+
+    /**
+     * Default maximum number of outstanding C-FIND requests proposed to the remote node.
+     */
+    public static final int DEFAULT_MAX_OPS_INVOKED = 8;
+
+    private final DicomNode nodeSource;
+    private final EncryptionTLS tls;
+    private final String callingAet;
+    private final boolean relationQR;
+
+    private int maxOpsInvoked = DEFAULT_MAX_OPS_INVOKED;
+    private boolean leanQuery = false;
+    private QueryCache queryCache;
+    private AssociationPool associationPool;
+    private DcmQR dcmqr;
+
+    public QuerySession(DicomNode nodeSource, EncryptionTLS tls, String callingAet) {
+        this(nodeSource, tls, callingAet, true);
+    }
+
+    public QuerySession(DicomNode nodeSource, EncryptionTLS tls, String callingAet, boolean relationQR) {
+        if (nodeSource == null) {
+            throw new IllegalArgumentException("nodeSource cannot be null");
+        }
+        this.nodeSource = nodeSource;
+        this.tls = tls;
+        this.callingAet = callingAet;
+        this.relationQR = relationQR;
+    }
+
+    public DicomNode getNodeSource() {
+        return nodeSource;
+    }
+
+    public EncryptionTLS getTls() {
+        return tls;
+    }
+
+    public String getCallingAet() {
+        return callingAet;
+    }
+
+    public boolean isRelationQR() {
+        return relationQR;
+    }
+
+    public int getMaxOpsInvoked() {
+        return maxOpsInvoked;
+    }
+
+    /**
+     * Sets the maximum number of outstanding C-FIND requests proposed to the remote node (0 means unlimited, default
+     * {@link #DEFAULT_MAX_OPS_INVOKED}). The value is applied when the association is opened. When the remote node does
+     * not support asynchronous operations, it negotiates 1 and the requests of
+     * {@link #queryAll(QueryRetrieveLevel, List, String[])} are then sent one after the other.
+     */
+    public void setMaxOpsInvoked(int maxOpsInvoked) {
+        if (maxOpsInvoked < 0) {
+            throw new IllegalArgumentException("maxOpsInvoked cannot be negative");
+        }
+        this.maxOpsInvoked = maxOpsInvoked;
+    }
+
+    public boolean isLeanQuery() {
+        return leanQuery;
+    }
+
+    /**
+     * In lean mode, only the return keys given by the caller are requested (the default return keys of the query level
+     * are not added). The manifest builders also get all the instances of a study with a single image level query when
+     * the remote node supports relational queries.
+     */
+    public void setLeanQuery(boolean leanQuery) {
+        this.leanQuery = leanQuery;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Sets the cache consulted before sending a query to the remote node. The association is not opened when all the
+     * queries are found in the cache.
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public AssociationPool getAssociationPool() {
+        return associationPool;
+    }
+
+    /**
+     * Sets the pool providing the association. Null opens a new association which is released by {@link #close()}.
+     */
+    public synchronized void setAssociationPool(AssociationPool associationPool) {
+        if (dcmqr != null) {
+            throw new IllegalStateException("The association is already open");
+        }
+        this.associationPool = associationPool;
+    }
+
+    /**
+     * @return the key of the association in a pool
+     */
+    public AssociationPool.Key getAssociationKey() {
+        return new AssociationPool.Key(nodeSource, callingAet, tls, relationQR, maxOpsInvoked);
+    }
+
+    public synchronized boolean isOpen() {
+        return dcmqr != null;
+    }
+
+    public synchronized List<DicomObject> query(QueryRetrieveLevel level, String[] matchingKeys, String[] returnKeys) {
+        ResponseCollector collector = new ResponseCollector(null);
+        return query(level, matchingKeys, returnKeys, collector) ? collector.result : null;
+    }
+
+    /**
+     * Performs the query and gives each matching entry to the handler as soon as it is received.
+     *
+     * @return true if the query has been performed successfully
+     */
+    public synchronized boolean query(QueryRetrieveLevel level, String[] matchingKeys, String[] returnKeys,
+        QueryResponseHandler handler) {
+        if (matchingKeys == null || (matchingKeys.length % 2) != 0 || handler == null) {
+            throw new IllegalArgumentException();
+        }
+        QueryCache cache = queryCache;
+        if (cache != null) {
+            List<DicomObject> result = cache.get(this, level, matchingKeys, returnKeys);
+            if (result != null) {
+                LOGGER.debug("Get {} matching entries from the cache", Integer.valueOf(result.size()));
+                replay(result, handler);
+                return true;
+            }
+        }
+        if (!open()) {
+            return false;
+        }
+        setKeys(level, matchingKeys, returnKeys);
+        try {
+            long t2 = System.currentTimeMillis();
+            // The results are kept in memory only when they have to be cached
+            ResponseCollector collector = cache == null ? null : new ResponseCollector(handler);
+            int nbEntries = dcmqr.query(collector == null ? handler : collector);
+            LOGGER.info("Received {} matching entries in {} s", Integer.valueOf(nbEntries),
+                Float.valueOf((System.currentTimeMillis() - t2) / 1000f));
+            if (collector != null) {
+                cache.put(this, level, matchingKeys, returnKeys, collector.result);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("ERROR: Failed to perform c-find:" + e.getMessage());
+            LOGGER.debug(e.getMessage(), e);
+            // The association may be in an undefined state, a new one will be opened by the next query
+            discard();
+            return false;
+        } catch (InterruptedException e) {
+            LOGGER.error("ERROR: Failed to execute c-find:" + e.getMessage());
+            LOGGER.debug(e.getMessage(), e);
+            discard();
+            return false;
+        }
+    }
+
+    /**
+     * Sends one C-FIND request for each item of matchingKeysList without waiting for the responses of the previous
+     * requests. The requests are pipelined on the association according to {@link #getMaxOpsInvoked()}.
+     *
+     * @return the matching entries of each request in the same order as matchingKeysList, or null if the queries
+     *         failed
+     */
+    public synchronized List<List<DicomObject>> queryAll(QueryRetrieveLevel level, List<String[]> matchingKeysList,
+        String[] returnKeys) {
+        if (matchingKeysList == null) {
+            throw new IllegalArgumentException();
+        }
+        List<ResponseCollector> collectors = new ArrayList<ResponseCollector>(matchingKeysList.size());
+        for (int i = 0; i < matchingKeysList.size(); i++) {
+            collectors.add(new ResponseCollector(null));
+        }
+        if (!queryAll(level, matchingKeysList, returnKeys, collectors)) {
+            return null;
+        }
+        List<List<DicomObject>> results = new ArrayList<List<DicomObject>>(collectors.size());
+        for (ResponseCollector collector : collectors) {
+            results.add(collector.result);
+        }
+        return results;
+    }
+
+    /**
+     * Same as {@link #queryAll(QueryRetrieveLevel, List, String[])}, but the matching entries of each request are
+     * given to the handler at the same index as soon as they are received.
+     *
+     * @return true if the queries have been performed successfully
+     */
+    public synchronized boolean queryAll(QueryRetrieveLevel level, List<String[]> matchingKeysList,
+        String[] returnKeys, List<? extends QueryResponseHandler> handlers) {
+        if (matchingKeysList == null || handlers == null || matchingKeysList.size() != handlers.size()) {
+            throw new IllegalArgumentException();
+        }
+        for (String[] matchingKeys : matchingKeysList) {
+            if (matchingKeys == null || (matchingKeys.length % 2) != 0) {
+                throw new IllegalArgumentException();
+            }
+        }
+        int n = matchingKeysList.size();
+        boolean[] cached = new boolean[n];
+        QueryCache cache = queryCache;
+        int nbQueries = 0;
+        for (int i = 0; i < n; i++) {
+            List<DicomObject> result =
+                cache == null ? null : cache.get(this, level, matchingKeysList.get(i), returnKeys);
+            if (result == null) {
+                nbQueries++;
+            } else {
+                replay(result, handlers.get(i));
+                cached[i] = true;
+            }
+        }
+        if (nbQueries == 0) {
+            LOGGER.debug("Get the results of {} queries from the cache", Integer.valueOf(n));
+            return true;
+        }
+        if (!open()) {
+            return false;
+        }
+        try {
+            long t2 = System.currentTimeMillis();
+            List<DimseRSP> rspList = new ArrayList<DimseRSP>(n);
+            for (int i = 0; i < n; i++) {
+                if (cached[i]) {
+                    rspList.add(null);
+                } else {
+                    setKeys(level, matchingKeysList.get(i), returnKeys);
+                    rspList.add(dcmqr.sendQuery());
+                }
+            }
+            int nbEntries = 0;
+            for (int i = 0; i < n; i++) {
+                if (cached[i]) {
+                    continue;
+                }
+                ResponseCollector collector = cache == null ? null : new ResponseCollector(handlers.get(i));
+                QueryResponseHandler handler = collector == null ? handlers.get(i) : collector;
+                DimseRSP rsp = rspList.get(i);
+                if (rsp == null) {
+                    // Not a relational query, the upper level keys are queried first
+                    setKeys(level, matchingKeysList.get(i), returnKeys);
+                    nbEntries += dcmqr.query(handler);
+                } else {
+                    nbEntries += dcmqr.readResponses(rsp, handler);
+                }
+                if (collector != null) {
+                    cache.put(this, level, matchingKeysList.get(i), returnKeys, collector.result);
+                }
+            }
+            LOGGER.info("Received {} matching entries from {} queries in {} s",
+                new Object[] { Integer.valueOf(nbEntries), Integer.valueOf(nbQueries),
+                    Float.valueOf((System.currentTimeMillis() - t2) / 1000f) });
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("ERROR: Failed to perform c-find:" + e.getMessage());
+            LOGGER.debug(e.getMessage(), e);
+            discard();
+            return false;
+        } catch (InterruptedException e) {
+            LOGGER.error("ERROR: Failed to execute c-find:" + e.getMessage());
+            LOGGER.debug(e.getMessage(), e);
+            discard();
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the remote node has accepted relational queries for the given level. With a query cache, the
+     *         result negotiated by a previous association with the same configuration is reused during the lifetime of
+     *         the cached results, otherwise the association is opened.
+     */
+    public synchronized boolean isRelationalQuery(QueryRetrieveLevel level) {
+        if (!relationQR) {
+            return false;
+        }
+        QueryCache cache = queryCache;
+        if (dcmqr == null) {
+            Boolean accepted = cache == null ? null : cache.getRelationalQuery(this, level);
+            if (accepted != null) {
+                return accepted.booleanValue();
+            }
+            if (!open()) {
+                return false;
+            }
+        }
+        dcmqr.setQueryLevel(level);
+        boolean accepted;
+        try {
+            accepted = dcmqr.isRelationalQuery();
+        } catch (NoPresentationContextException e) {
+            LOGGER.debug(e.getMessage(), e);
+            accepted = false;
+        }
+        if (cache != null) {
+            cache.putRelationalQuery(this, level, accepted);
+        }
+        return accepted;
+    }
+
+    /**
+     * Opens the association if it is not already open.
+     *
+     * @return true if the association is ready to be used
+     */
+    public synchronized boolean open() {
+        if (dcmqr != null) {
+            return true;
+        }
+        AssociationPool.Key key = getAssociationKey();
+        DcmQR qr = associationPool == null ? AssociationPool.openAssociation(key, false) : associationPool.borrow(key);
+        if (qr == null) {
+            return false;
+        }
+        dcmqr = qr;
+        return true;
+    }
+
+    /**
+     * Releases the association or gives it back to the pool.
+     */
+    public synchronized void close() {
+        if (dcmqr != null && associationPool != null) {
+            associationPool.release(dcmqr);
+            dcmqr = null;
+        } else if (dcmqr != null) {
+            try {
+                dcmqr.close();
+                LOGGER.info("Released connection to " + nodeSource.getAet());
+            } catch (InterruptedException e) {
+            } finally {
+                dcmqr = null;
+            }
+        }
+    }
+
+    /**
+     * Closes an association which may be in an undefined state, it is not reused by the pool.
+     */
+    private void discard() {
+        if (dcmqr != null && associationPool != null) {
+            associationPool.invalidate(dcmqr);
+            dcmqr = null;
+        } else {
+            close();
+        }
+    }
+
+    private void setKeys(QueryRetrieveLevel level, String[] matchingKeys, String[] returnKeys) {
+        dcmqr.clearKeys();
+        dcmqr.setQueryLevel(level == null ? QueryRetrieveLevel.STUDY : level);
+        if (!leanQuery) {
+            // Add the default return keys for the selected query level
+            dcmqr.addDefReturnKeys();
+        }
+        // Manifest fields
+        for (int i = 1; i < matchingKeys.length; i++, i++) {
+            dcmqr.addMatchingKey(Tag.toTagPath(matchingKeys[i - 1]), matchingKeys[i]);
+        }
+        // DICOM fields to return
+        if (returnKeys != null) {
+            for (int i = 0; i < returnKeys.length; i++) {
+                dcmqr.addReturnKey(Tag.toTagPath(returnKeys[i]));
+            }
+        }
+    }
+
+    private static void replay(List<DicomObject> result, QueryResponseHandler handler) {
+        for (DicomObject dcm : result) {
+            handler.onResponse(dcm);
+        }
+    }
+
+    /**
+     * Keeps the matching entries in a list and forwards them to another handler.
+     */
+    private static class ResponseCollector implements QueryResponseHandler {
+        private final List<DicomObject> result = new ArrayList<DicomObject>();
+        private final QueryResponseHandler handler;
+
+        ResponseCollector(QueryResponseHandler handler) {
+            this.handler = handler;
+        }
+
+        public void onResponse(DicomObject dataset) {
+            result.add(dataset);
+            if (handler != null) {
+                handler.onResponse(dataset);
+            }
+        }
+    }
+}
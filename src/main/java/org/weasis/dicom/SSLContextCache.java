@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares the SSL contexts between the DICOM operations using the same key store and trust store. The key stores are
+ * loaded once and are reloaded only when their file has changed.
+ * <p>
+ * All the associations created with the same SSL context share its client session cache, so a new association to a
+ * node already connected can resume the TLS session (abbreviated handshake) instead of a full handshake.
+ */
+public final class SSLContextCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SSLContextCache.class);
+
+    // Default values of the dcm4che2 tools
+    private static final String DEFAULT_KEYSTORE = "resource:tls/test_sys_1.p12";
+    private static final String DEFAULT_TRUSTSTORE = "resource:tls/mesa_certs.jks";
+    private static final String DEFAULT_PASSWORD = "secret";
+
+    // Keyed by the store paths and a digest of the passwords, the passwords are not kept in memory
+    private static final Map<List<String>, Entry> CACHE = new HashMap<List<String>, Entry>();
+
+    // Timeout of the TLS sessions in seconds
+    private static int sessionTimeout = 3600;
+
+    private SSLContextCache() {
+    }
+
+    public static synchronized int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Sets the time in seconds during which a TLS session can be resumed by a new association. 0 means no limit. The
+     * value is applied to the SSL contexts created afterwards.
+     */
+    public static synchronized void setSessionTimeout(int sessionTimeout) {
+        if (sessionTimeout < 0) {
+            throw new IllegalArgumentException("sessionTimeout cannot be negative");
+        }
+        SSLContextCache.sessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * Returns the SSL context of the key store and the trust store of the TLS settings. The context is created on the
+     * first call and is created again when a key store file has been modified.
+     */
+    public static synchronized SSLContext getSSLContext(EncryptionTLS tls) throws GeneralSecurityException,
+        IOException {
+        if (tls == null) {
+            throw new IllegalArgumentException("tls cannot be null");
+        }
+        String keystore = tls.getKeystore() == null ? DEFAULT_KEYSTORE : tls.getKeystore();
+        String keystorepw = tls.getKeystorepw() == null ? DEFAULT_PASSWORD : tls.getKeystorepw();
+        String keypw = tls.getKeypw() == null ? keystorepw : tls.getKeypw();
+        String truststore = tls.getTruststore() == null ? DEFAULT_TRUSTSTORE : tls.getTruststore();
+        String truststorepw = tls.getTruststorepw() == null ? DEFAULT_PASSWORD : tls.getTruststorepw();
+        List<String> key =
+            Arrays.asList(new String[] { keystore, truststore, digest(keystorepw, keypw, truststorepw) });
+
+        Entry entry = CACHE.get(key);
+        long keystoreStamp = getStamp(keystore);
+        long truststoreStamp = getStamp(truststore);
+        if (entry != null && entry.keystoreStamp == keystoreStamp && entry.truststoreStamp == truststoreStamp) {
+            return entry.context;
+        }
+
+        long t1 = System.currentTimeMillis();
+        KeyStore keyStore = loadKeyStore(keystore, keystorepw.toCharArray());
+        KeyStore trustStore = loadKeyStore(truststore, truststorepw.toCharArray());
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, keypw.toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        context.getClientSessionContext().setSessionTimeout(sessionTimeout);
+
+        CACHE.put(key, new Entry(context, keystoreStamp, truststoreStamp));
+        LOGGER.info("{} TLS context of {} in {} s", new Object[] { entry == null ? "Created" : "Reloaded", keystore,
+            Float.valueOf((System.currentTimeMillis() - t1) / 1000f) });
+        return context;
+    }
+
+    /**
+     * Removes all the SSL contexts, the key stores are loaded again by the next operations.
+     */
+    public static synchronized void clear() {
+        CACHE.clear();
+    }
+
+    private static String digest(String... passwords) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String pw : passwords) {
+                md.update(pw.getBytes("UTF-8"));
+                // Separator, ("ab", "c") and ("a", "bc") must not have the same digest
+                md.update((byte) 0);
+            }
+            byte[] hash = md.digest();
+            StringBuffer buf = new StringBuffer(hash.length * 2);
+            for (byte b : hash) {
+                int v = b & 0xff;
+                if (v < 16) {
+                    buf.append('0');
+                }
+                buf.append(Integer.toHexString(v));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+
+    /**
+     * @return a value which changes when the file of the key store is modified, 0 when the key store is not a local
+     *         file (resource or remote URL)
+     */
+    private static long getStamp(String url) {
+        File file = toFile(url);
+        if (file == null) {
+            return 0L;
+        }
+        return file.lastModified() * 31 + file.length();
+    }
+
+    private static File toFile(String url) {
+        if (url.startsWith("resource:")) {
+            return null;
+        }
+        try {
+            URL u = new URL(url);
+            return "file".equals(u.getProtocol()) ? new File(u.getPath()) : null;
+        } catch (MalformedURLException e) {
+            return new File(url);
+        }
+    }
+
+    private static KeyStore loadKeyStore(String url, char[] password) throws GeneralSecurityException, IOException {
+        KeyStore key = KeyStore.getInstance(toKeyStoreType(url));
+        InputStream in = openFileOrURL(url);
+        try {
+            key.load(in, password);
+        } finally {
+            in.close();
+        }
+        return key;
+    }
+
+    private static InputStream openFileOrURL(String url) throws IOException {
+        if (url.startsWith("resource:")) {
+            InputStream in = SSLContextCache.class.getClassLoader().getResourceAsStream(url.substring(9));
+            if (in == null) {
+                throw new FileNotFoundException(url);
+            }
+            return in;
+        }
+        try {
+            return new URL(url).openStream();
+        } catch (MalformedURLException e) {
+            return new FileInputStream(url);
+        }
+    }
+
+    private static String toKeyStoreType(String fname) {
+        return fname.endsWith(".p12") || fname.endsWith(".P12") ? "PKCS12" : "JKS";
+    }
+
+    private static class Entry {
+        private final SSLContext context;
+        private final long keystoreStamp;
+        private final long truststoreStamp;
+
+        Entry(SSLContext context, long keystoreStamp, long truststoreStamp) {
+            this.context = context;
+            this.keystoreStamp = keystoreStamp;
+            this.truststoreStamp = truststoreStamp;
+        }
+    }
+}
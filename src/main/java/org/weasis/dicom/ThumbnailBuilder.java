@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.dcm4che2.tool.dcm2jpg.Dcm2Jpg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.util.FileUtil;
+
+/**
+ * Builds the thumbnails of the series with a bounded pool of threads. The number of decoded images in memory is limited
+ * by a memory budget: before decoding, a thread reserves the size of the decoded (possibly subsampled) image and
+ * releases it once the image has been resized.
+ * <p>
+ * The time spent in each stage (waiting for memory, decoding, resizing and encoding) is summed over all the
+ * thumbnails and logged by {@link #shutdown()}.
+ */
+public class ThumbnailBuilder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailBuilder.class);
+
+    // Size of a pixel in the worst case (ARGB)
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final ExecutorService executor;
+    private final Dcm2Jpg dcm2jpg;
+    private final Semaphore memory;
+    private final int memoryBudgetKB;
+    private final List<Future<File>> tasks;
+    private final long startTime;
+
+    private final AtomicInteger nbBuilt = new AtomicInteger();
+    private final AtomicInteger nbFailed = new AtomicInteger();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong decodeTime = new AtomicLong();
+    private final AtomicLong resizeTime = new AtomicLong();
+    private final AtomicLong encodeTime = new AtomicLong();
+
+    /**
+     * @param threads
+     *            the maximum number of thumbnails built concurrently
+     * @param memoryBudget
+     *            the maximum number of bytes of the decoded images in memory
+     * @param maxSize
+     *            the maximum size in pixels of the thumbnails
+     * @param quality
+     *            the JPEG quality (1 to 100)
+     */
+    public ThumbnailBuilder(int threads, long memoryBudget, int maxSize, int quality) {
+        this.executor = Executors.newFixedThreadPool(threads < 1 ? 1 : threads);
+        // The conversion parameters are only read, the same instance can be used by all the threads
+        this.dcm2jpg = new Dcm2Jpg();
+        dcm2jpg.setImageQuality(quality);
+        dcm2jpg.setMaxSize(maxSize);
+        this.memoryBudgetKB = (int) Math.max(1, Math.min(memoryBudget / 1024, Integer.MAX_VALUE));
+        this.memory = new Semaphore(memoryBudgetKB, true);
+        this.tasks = new ArrayList<Future<File>>();
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Builds the thumbnail of the first frame asynchronously.
+     * 
+     * @see #submit(File, int, File, boolean)
+     */
+    public Future<File> submit(File dicom, File thumbnail, boolean deleteSource) {
+        return submit(dicom, 0, thumbnail, deleteSource);
+    }
+
+    /**
+     * Builds the thumbnail asynchronously.
+     * 
+     * @param dicom
+     *            the DICOM file
+     * @param frameIndex
+     *            the index of the frame, starting at 0
+     * @param thumbnail
+     *            the destination of the thumbnail
+     * @param deleteSource
+     *            true for deleting the DICOM file when the thumbnail is built (e.g. a file extracted from a zip)
+     * @return the thumbnail file or null when it cannot be built
+     */
+    public synchronized Future<File> submit(final File dicom, final int frameIndex, final File thumbnail,
+        final boolean deleteSource) {
+        Future<File> task = executor.submit(new Callable<File>() {
+
+            public File call() throws Exception {
+                try {
+                    return build(dicom, frameIndex, thumbnail) ? thumbnail : null;
+                } finally {
+                    if (deleteSource) {
+                        dicom.delete();
+                    }
+                }
+            }
+        });
+        tasks.add(task);
+        return task;
+    }
+
+    private boolean build(File dicom, int index, File thumbnail) {
+        ImageInputStream iis = null;
+        ImageReader reader = null;
+        int permits = 0;
+        try {
+            iis = ImageIO.createImageInputStream(dicom);
+            reader = dcm2jpg.getImageReader(iis);
+            int step = dcm2jpg.getSubsamplingStep(reader, index);
+            long size =
+                (long) (reader.getWidth(index) / step + 1) * (reader.getHeight(index) / step + 1) * BYTES_PER_PIXEL;
+            // An image larger than the budget takes the whole budget
+            int required = (int) Math.max(1, Math.min(size / 1024, memoryBudgetKB));
+
+            long t = System.nanoTime();
+            memory.acquire(required);
+            // Released by finally only once acquired, an interrupted acquire must not raise the budget
+            permits = required;
+            long t2 = System.nanoTime();
+            waitTime.addAndGet(t2 - t);
+
+            BufferedImage bi = dcm2jpg.readImage(reader, index);
+            t = System.nanoTime();
+            decodeTime.addAndGet(t - t2);
+            if (bi == null) {
+                LOGGER.error("Cannot build thumbnail, {} has no image", dicom);
+                nbFailed.incrementAndGet();
+                return false;
+            }
+            if (dcm2jpg.getMaxSize() > 15) {
+                bi = Dcm2Jpg.resize(bi, dcm2jpg.getMaxSize());
+            }
+            t2 = System.nanoTime();
+            resizeTime.addAndGet(t2 - t);
+            // The decoded image is not referenced anymore
+            memory.release(permits);
+            permits = 0;
+
+            // Write to a temporary file, the thumbnail can be read by other threads or processes (cache)
+            File part = new File(thumbnail.getPath() + ".part");
+            dcm2jpg.writeImage(bi, part);
+            if (!part.renameTo(thumbnail) && !(thumbnail.delete() && part.renameTo(thumbnail))) {
+                part.delete();
+                throw new IOException("Cannot rename " + part);
+            }
+            encodeTime.addAndGet(System.nanoTime() - t2);
+            nbBuilt.incrementAndGet();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.error("Cannot build thumbnail of {}, {}", dicom, e.getMessage());
+        } finally {
+            if (permits > 0) {
+                memory.release(permits);
+            }
+            dcm2jpg.releaseImageReader(reader);
+            FileUtil.safeClose(iis);
+        }
+        nbFailed.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Waits for all the submitted thumbnails, releases the threads and logs the timing metrics.
+     * 
+     * @return the number of thumbnails built
+     */
+    public int shutdown() {
+        List<Future<File>> list;
+        synchronized (this) {
+            executor.shutdown();
+            list = new ArrayList<Future<File>>(tasks);
+        }
+        for (Future<File> task : list) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                break;
+            } catch (ExecutionException e) {
+                LOGGER.error("Cannot build thumbnail, {}", e.getMessage());
+            }
+        }
+        LOGGER.info("Built {} thumbnails ({} failed) in {} s", new Object[] { nbBuilt.get(), nbFailed.get(),
+            (System.currentTimeMillis() - startTime) / 1000f });
+        LOGGER.info("Thumbnail stages: memory wait {} s, decode {} s, resize {} s, encode {} s", new Object[] {
+            toSeconds(waitTime.get()), toSeconds(decodeTime.get()), toSeconds(resizeTime.get()),
+            toSeconds(encodeTime.get()) });
+        return nbBuilt.get();
+    }
+
+    /**
+     * @return the key of the rendering parameters of the thumbnails
+     * @see Dcm2Jpg#getRenderKey()
+     */
+    public String getRenderKey() {
+        return dcm2jpg.getRenderKey();
+    }
+
+    public int getNbBuilt() {
+        return nbBuilt.get();
+    }
+
+    public int getNbFailed() {
+        return nbFailed.get();
+    }
+
+    /**
+     * @return the time waiting for the memory budget in nanoseconds, summed over all the threads
+     */
+    public long getWaitTime() {
+        return waitTime.get();
+    }
+
+    /**
+     * @return the decoding time in nanoseconds, summed over all the threads
+     */
+    public long getDecodeTime() {
+        return decodeTime.get();
+    }
+
+    /**
+     * @return the resizing time in nanoseconds, summed over all the threads
+     */
+    public long getResizeTime() {
+        return resizeTime.get();
+    }
+
+    /**
+     * @return the encoding time in nanoseconds, summed over all the threads
+     */
+    public long getEncodeTime() {
+        return encodeTime.get();
+    }
+
+    private static float toSeconds(long nanos) {
+        return nanos / 1000000000f;
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk cache of the thumbnails. The name of a thumbnail is a digest of the UID of the image and of the rendering
+ * parameters, so a thumbnail already built for the same image with the same parameters is reused without decoding the
+ * pixel data.
+ * <p>
+ * The last modification time of a file is updated when it is used. When the cache exceeds its maximum size, the least
+ * recently used thumbnails are deleted.
+ */
+public class ThumbnailCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    public static final String FILE_EXTENSION = ".jpg";
+
+    private final File directory;
+    private final long maxSize;
+    private boolean directoryCreated = false;
+
+    /**
+     * @param directory
+     *            the directory of the cached thumbnails, created when the first thumbnail is added
+     * @param maxSize
+     *            the maximum size of the cache in bytes
+     */
+    public ThumbnailCache(File directory, long maxSize) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null!");
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the cached thumbnail file of an image. The file exists only if the thumbnail has already been built, see
+     * {@link #contains(File)}.
+     *
+     * @param uid
+     *            the SOP Instance UID (or the Series Instance UID) of the thumbnail
+     * @param renderKey
+     *            the key of the rendering parameters (size, quality, windowing...)
+     */
+    public File getFile(String uid, String renderKey) {
+        return new File(directory, digest(uid + '|' + renderKey) + FILE_EXTENSION);
+    }
+
+    /**
+     * @return true if the thumbnail is in the cache. The thumbnail is then marked as recently used.
+     */
+    public boolean contains(File thumbnail) {
+        if (thumbnail.isFile() && thumbnail.length() > 0) {
+            thumbnail.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates the directory of the cache if it does not exist yet. Must be called before writing a new thumbnail.
+     *
+     * @return false if the directory cannot be created
+     */
+    public synchronized boolean mkdirs() {
+        if (!directoryCreated) {
+            if (!directory.exists() && !directory.mkdirs()) {
+                LOGGER.error("Cannot create the thumbnail cache {}", directory);
+                return false;
+            }
+            directoryCreated = true;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the size of the cache is below the maximum size.
+     *
+     * @return the number of deleted thumbnails
+     */
+    public synchronized int evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+        if (size <= maxSize) {
+            return 0;
+        }
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            // Read once, the value can change during the sort
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(Integer o1, Integer o2) {
+                long t1 = lastModified[o1];
+                long t2 = lastModified[o2];
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        int nbDeleted = 0;
+        for (int i = 0; i < order.length && size > maxSize; i++) {
+            File f = files[order[i]];
+            long length = f.length();
+            if (f.delete()) {
+                size -= length;
+                nbDeleted++;
+            }
+        }
+        LOGGER.info("Evicted {} thumbnails from the cache {}", nbDeleted, directory);
+        return nbDeleted;
+    }
+
+    private static String digest(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] hash = md.digest(key.getBytes("UTF-8"));
+            StringBuffer buf = new StringBuffer(hash.length * 2);
+            for (byte b : hash) {
+                int v = b & 0xff;
+                if (v < 16) {
+                    buf.append('0');
+                }
+                buf.append(Integer.toHexString(v));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.tool.dcmqr.DcmQR.QueryRetrieveLevel;
+
+/**
+ * {@link QueryCache} keeping the results during a fixed time. When the maximum number of entries is reached, the least
+ * recently used entry is removed. The relational query support of the nodes is kept with the same limits.
+ */
+public class TimedQueryCache implements QueryCache {
+
+    private final long timeToLive;
+    private final int maxEntries;
+    private final Map<Key, Entry> map;
+    private final Map<Key, Capability> capabilities;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * @param timeToLive
+     *            the time in milliseconds during which a result is valid
+     * @param maxEntries
+     *            the maximum number of queries in the cache
+     */
+    public TimedQueryCache(long timeToLive, final int maxEntries) {
+        if (timeToLive <= 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException("timeToLive and maxEntries must be positive");
+        }
+        this.timeToLive = timeToLive;
+        this.maxEntries = maxEntries;
+        this.map = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 3591434125741395123L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.capabilities = new LinkedHashMap<Key, Capability>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -2290857153458112512L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Capability> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized List<DicomObject> get(QuerySession session, QueryRetrieveLevel level, String[] matchingKeys,
+        String[] returnKeys) {
+        Key key = new Key(session, level, matchingKeys, returnKeys);
+        Entry entry = map.get(key);
+        if (entry != null && entry.expiration < System.currentTimeMillis()) {
+            map.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return new ArrayList<DicomObject>(entry.result);
+    }
+
+    public synchronized void put(QuerySession session, QueryRetrieveLevel level, String[] matchingKeys,
+        String[] returnKeys, List<DicomObject> result) {
+        if (result != null) {
+            Set<String> studies = new HashSet<String>();
+            for (int i = 1; i < matchingKeys.length; i++, i++) {
+                if (Tag.toTag(matchingKeys[i - 1]) == Tag.StudyInstanceUID) {
+                    studies.add(matchingKeys[i]);
+                }
+            }
+            for (DicomObject dcm : result) {
+                String uid = dcm.getString(Tag.StudyInstanceUID);
+                if (uid != null) {
+                    studies.add(uid);
+                }
+            }
+            map.put(new Key(session, level, matchingKeys, returnKeys), new Entry(new ArrayList<DicomObject>(result),
+                studies, System.currentTimeMillis() + timeToLive));
+        }
+    }
+
+    public synchronized Boolean getRelationalQuery(QuerySession session, QueryRetrieveLevel level) {
+        Key key = new Key(session, level, null, null);
+        Capability capability = capabilities.get(key);
+        if (capability == null) {
+            return null;
+        }
+        if (capability.expiration < System.currentTimeMillis()) {
+            capabilities.remove(key);
+            return null;
+        }
+        return Boolean.valueOf(capability.accepted);
+    }
+
+    public synchronized void putRelationalQuery(QuerySession session, QueryRetrieveLevel level, boolean accepted) {
+        capabilities.put(new Key(session, level, null, null), new Capability(accepted, System.currentTimeMillis()
+            + timeToLive));
+    }
+
+    public synchronized void invalidateStudy(String studyInstanceUID) {
+        if (studyInstanceUID != null) {
+            for (Iterator<Entry> it = map.values().iterator(); it.hasNext();) {
+                if (it.next().studies.contains(studyInstanceUID)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        capabilities.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuffer buf = new StringBuffer("Query cache entries:");
+        buf.append(map.size());
+        buf.append(" hits:");
+        buf.append(hitCount);
+        buf.append(" misses:");
+        buf.append(missCount);
+        return buf.toString();
+    }
+
+    private static class Entry {
+        final List<DicomObject> result;
+        final Set<String> studies;
+        final long expiration;
+
+        Entry(List<DicomObject> result, Set<String> studies, long expiration) {
+            this.result = result;
+            this.studies = studies;
+            this.expiration = expiration;
+        }
+    }
+
+    private static class Capability {
+        final boolean accepted;
+        final long expiration;
+
+        Capability(boolean accepted, long expiration) {
+            this.accepted = accepted;
+            this.expiration = expiration;
+        }
+    }
+
+    private static class Key {
+        private final DicomNode node;
+        private final String callingAet;
+        private final boolean relationQR;
+        // The lean queries do not request the default return keys
+        private final boolean leanQuery;
+        private final QueryRetrieveLevel level;
+        private final String matchingKeys;
+        private final String returnKeys;
+
+        Key(QuerySession session, QueryRetrieveLevel level, String[] matchingKeys, String[] returnKeys) {
+            this.node = session.getNodeSource();
+            this.callingAet = session.getCallingAet();
+            this.relationQR = session.isRelationQR();
+            this.leanQuery = session.isLeanQuery();
+            this.level = level == null ? QueryRetrieveLevel.STUDY : level;
+            this.matchingKeys = normalize(matchingKeys, true);
+            this.returnKeys = normalize(returnKeys, false);
+        }
+
+        /*
+         * The tags are sorted and written in the same format whatever the syntax used by the caller (leading zeros,
+         * upper or lower case).
+         */
+        private static String normalize(String[] keys, boolean keyValuePairs) {
+            if (keys == null) {
+                return "";
+            }
+            int step = keyValuePairs ? 2 : 1;
+            String[] items = new String[keys.length / step];
+            for (int i = 0; i < items.length; i++) {
+                StringBuffer buf = new StringBuffer();
+                for (int tag : Tag.toTagPath(keys[i * step])) {
+                    buf.append(String.format("%08X", tag));
+                    buf.append('/');
+                }
+                if (keyValuePairs) {
+                    String value = keys[i * step + 1];
+                    buf.append('=');
+                    buf.append(value == null ? "" : value.trim());
+                }
+                items[i] = buf.toString();
+            }
+            Arrays.sort(items);
+            StringBuffer buf = new StringBuffer();
+            for (String item : items) {
+                buf.append(item);
+                buf.append('\\');
+            }
+            return buf.toString();
+        }
+
+        @Override
+        public int hashCode() {
+            int result = node == null ? 0 : node.hashCode();
+            result = 31 * result + (callingAet == null ? 0 : callingAet.hashCode());
+            result = 31 * result + (relationQR ? 1 : 0);
+            result = 31 * result + (leanQuery ? 1 : 0);
+            result = 31 * result + level.hashCode();
+            result = 31 * result + matchingKeys.hashCode();
+            return 31 * result + returnKeys.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (node == null ? other.node == null : node.equals(other.node))
+                && (callingAet == null ? other.callingAet == null : callingAet.equals(other.callingAet))
+                && relationQR == other.relationQR && leanQuery == other.leanQuery && level == other.level
+                && matchingKeys.equals(other.matchingKeys) && returnKeys.equals(other.returnKeys);
+        }
+    }
+}
@@ -10,12 +10,17 @@
  ******************************************************************************/
 package org.weasis.launcher.wado;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +39,7 @@ public class Patient implements XmlDescription {
     private String patientBirthTime = null;
     private String patientSex = null;
     private final List<Study> studiesList;
+    private final Map<String, Study> studiesMap;
 
     public Patient(String patientID) {
         this(patientID, null);
@@ -46,6 +52,20 @@ public class Patient implements XmlDescription {
         this.patientID = patientID;
         this.issuerOfPatientID = issuerOfPatientID;
         studiesList = new ArrayList<Study>();
+        studiesMap = new HashMap<String, Study>();
+    }
+
+    /**
+     * @return a key identifying the patient by its ID and issuer, with the same rules as
+     *         {@link #hasSameUniqueID(String, String)}
+     */
+    public static String getUniqueKey(String patientID, String issuerOfPatientID) {
+        // Backslash cannot be part of a LO value
+        return issuerOfPatientID == null ? patientID : patientID + "\\" + issuerOfPatientID;
+    }
+
+    public String getUniqueKey() {
+        return getUniqueKey(patientID, issuerOfPatientID);
     }
 
     public boolean hasSameUniqueID(String patientID, String issuerOfPatientID) {
@@ -112,7 +132,8 @@ public class Patient implements XmlDescription {
     }
 
     public void addStudy(Study study) {
-        if (!studiesList.contains(study)) {
+        if (study != null && !studiesMap.containsKey(study.getStudyInstanceUID())) {
+            studiesMap.put(study.getStudyInstanceUID(), study);
             studiesList.add(study);
         }
     }
@@ -122,9 +143,19 @@ public class Patient implements XmlDescription {
      * @return
      */
     public String toXml() {
-        StringBuffer result = new StringBuffer();
+        StringWriter result = new StringWriter();
+        try {
+            toXml(result);
+        } catch (IOException e) {
+            // Cannot happen with a StringWriter
+        }
+        logger.debug("Patient toXml [{}]", result.toString());
+        return result.toString();
+    }
+
+    public void toXml(Writer result) throws IOException {
         if (patientID != null && patientName != null) {
-            result.append("\n<" + TagW.DICOM_LEVEL.Patient.name() + " ");
+            result.write("\n<" + TagW.DICOM_LEVEL.Patient.name() + " ");
 
             TagUtil.addXmlAttribute(TagW.PatientID, patientID, result);
             TagUtil.addXmlAttribute(TagW.IssuerOfPatientID, issuerOfPatientID, result);
@@ -132,7 +163,7 @@ public class Patient implements XmlDescription {
             TagUtil.addXmlAttribute(TagW.PatientBirthDate, patientBirthDate, result);
             TagUtil.addXmlAttribute(TagW.PatientBirthTime, patientBirthTime, result);
             TagUtil.addXmlAttribute(TagW.PatientSex, patientSex, result);
-            result.append(">");
+            result.write(">");
 
             Collections.sort(studiesList, new Comparator<Study>() {
 
@@ -167,21 +198,14 @@ public class Patient implements XmlDescription {
                 }
             });
             for (Study s : studiesList) {
-                result.append(s.toXml());
+                s.toXml(result);
             }
-            result.append("\n</Patient>");
+            result.write("\n</Patient>");
         }
-        logger.debug("Patient toXml [{}]", result.toString());
-        return result.toString();
     }
 
     public Study getStudy(String uid) {
-        for (Study s : studiesList) {
-            if (s.getStudyInstanceUID().equals(uid)) {
-                return s;
-            }
-        }
-        return null;
+        return studiesMap.get(uid);
     }
 
 }
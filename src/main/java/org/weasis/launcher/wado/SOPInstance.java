@@ -10,6 +10,10 @@
  ******************************************************************************/
 package org.weasis.launcher.wado;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
 import org.weasis.launcher.wado.xml.TagUtil;
 import org.weasis.launcher.wado.xml.XmlDescription;
 
@@ -56,16 +60,23 @@ public class SOPInstance implements XmlDescription {
     }
 
     public String toXml() {
-        StringBuffer result = new StringBuffer();
-        result.append("\n<" + TagW.DICOM_LEVEL.Instance.name() + " ");
+        StringWriter result = new StringWriter();
+        try {
+            toXml(result);
+        } catch (IOException e) {
+            // Cannot happen with a StringWriter
+        }
+        return result.toString();
+    }
+
+    public void toXml(Writer result) throws IOException {
+        result.write("\n<" + TagW.DICOM_LEVEL.Instance.name() + " ");
         TagUtil.addXmlAttribute(TagW.SOPInstanceUID, sopInstanceUID, result);
         // file_tsuid DICOM Transfer Syntax UID (0002,0010)
         TagUtil.addXmlAttribute(TagW.TransferSyntaxUID, transferSyntaxUID, result);
         TagUtil.addXmlAttribute(TagW.InstanceNumber, instanceNumber, result);
         TagUtil.addXmlAttribute(TagW.DirectDownloadFile, directDownloadFile, result);
-        result.append("/>");
-
-        return result.toString();
+        result.write("/>");
     }
 
 }
@@ -10,9 +10,14 @@
  ******************************************************************************/
 package org.weasis.launcher.wado;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.weasis.launcher.wado.xml.TagUtil;
 import org.weasis.launcher.wado.xml.XmlDescription;
@@ -22,6 +27,7 @@ public class Series implements XmlDescription {
     private final String seriesInstanceUID;
     private String seriesDescription = null;
     private final ArrayList<SOPInstance> sopInstancesList;
+    private final Map<String, SOPInstance> sopInstancesMap;
     private String modality = null;
     private String seriesNumber = null;
     private String transferSyntaxUID = null;
@@ -36,6 +42,7 @@ public class Series implements XmlDescription {
         }
         this.seriesInstanceUID = seriesInstanceUID;
         sopInstancesList = new ArrayList<SOPInstance>();
+        sopInstancesMap = new HashMap<String, SOPInstance>();
     }
 
     public String getSeriesInstanceUID() {
@@ -82,10 +89,20 @@ public class Series implements XmlDescription {
         seriesDescription = s == null ? "" : s;
     }
 
-    public void addSOPInstance(SOPInstance s) {
-        if (s != null) {
+    /**
+     * @return false if the instance is null or if an instance with the same SOPInstanceUID is already in the series
+     */
+    public boolean addSOPInstance(SOPInstance s) {
+        if (s != null && !sopInstancesMap.containsKey(s.getSOPInstanceIUID())) {
+            sopInstancesMap.put(s.getSOPInstanceIUID(), s);
             sopInstancesList.add(s);
+            return true;
         }
+        return false;
+    }
+
+    public SOPInstance getSOPInstance(String uid) {
+        return sopInstancesMap.get(uid);
     }
 
     public String getModality() {
@@ -126,9 +143,18 @@ public class Series implements XmlDescription {
     }
 
     public String toXml() {
-        StringBuffer result = new StringBuffer();
+        StringWriter result = new StringWriter();
+        try {
+            toXml(result);
+        } catch (IOException e) {
+            // Cannot happen with a StringWriter
+        }
+        return result.toString();
+    }
+
+    public void toXml(Writer result) throws IOException {
         if (seriesInstanceUID != null) {
-            result.append("\n<" + TagW.DICOM_LEVEL.Series.name() + " ");
+            result.write("\n<" + TagW.DICOM_LEVEL.Series.name() + " ");
             TagUtil.addXmlAttribute(TagW.SeriesInstanceUID, seriesInstanceUID, result);
             TagUtil.addXmlAttribute(TagW.SeriesDescription, seriesDescription, result);
             TagUtil.addXmlAttribute(TagW.SeriesNumber, seriesNumber, result);
@@ -139,14 +165,13 @@ public class Series implements XmlDescription {
             TagUtil.addXmlAttribute(TagW.WadoTransferSyntaxUID, wadoTransferSyntaxUID, result);
             TagUtil
                 .addXmlAttribute(TagW.WadoCompressionRate, wadoCompression < 1 ? null : "" + wadoCompression, result);
-            result.append(">");
+            result.write(">");
             sortByInstanceNumber();
             for (SOPInstance s : sopInstancesList) {
-                result.append(s.toXml());
+                s.toXml(result);
             }
-            result.append("\n</Series>");
+            result.write("\n</Series>");
         }
-        return result.toString();
     }
 
     public boolean isEmpty() {
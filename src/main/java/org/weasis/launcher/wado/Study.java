@@ -10,10 +10,15 @@
  ******************************************************************************/
 package org.weasis.launcher.wado;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.weasis.launcher.wado.xml.TagUtil;
 import org.weasis.launcher.wado.xml.XmlDescription;
@@ -28,6 +33,7 @@ public class Study implements XmlDescription {
     private String accessionNumber = null;
     private String ReferringPhysicianName = null;
     private final List<Series> seriesList;
+    private final Map<String, Series> seriesMap;
 
     public Study(String studyInstanceUID) {
         if (studyInstanceUID == null) {
@@ -35,6 +41,7 @@ public class Study implements XmlDescription {
         }
         this.studyInstanceUID = studyInstanceUID;
         seriesList = new ArrayList<Series>();
+        seriesMap = new HashMap<String, Series>();
     }
 
     public String getStudyInstanceUID() {
@@ -90,15 +97,25 @@ public class Study implements XmlDescription {
     }
 
     public void addSeries(Series s) {
-        if (!seriesList.contains(s)) {
+        if (s != null && !seriesMap.containsKey(s.getSeriesInstanceUID())) {
+            seriesMap.put(s.getSeriesInstanceUID(), s);
             seriesList.add(s);
         }
     }
 
     public String toXml() {
-        StringBuffer result = new StringBuffer();
+        StringWriter result = new StringWriter();
+        try {
+            toXml(result);
+        } catch (IOException e) {
+            // Cannot happen with a StringWriter
+        }
+        return result.toString();
+    }
+
+    public void toXml(Writer result) throws IOException {
         if (studyInstanceUID != null) {
-            result.append("\n<" + TagW.DICOM_LEVEL.Study.name() + " ");
+            result.write("\n<" + TagW.DICOM_LEVEL.Study.name() + " ");
             TagUtil.addXmlAttribute(TagW.StudyInstanceUID, studyInstanceUID, result);
             TagUtil.addXmlAttribute(TagW.StudyDescription, studyDescription, result);
             TagUtil.addXmlAttribute(TagW.StudyDate, studyDate, result);
@@ -106,7 +123,7 @@ public class Study implements XmlDescription {
             TagUtil.addXmlAttribute(TagW.AccessionNumber, accessionNumber, result);
             TagUtil.addXmlAttribute(TagW.StudyID, studyID, result);
             TagUtil.addXmlAttribute(TagW.ReferringPhysicianName, ReferringPhysicianName, result);
-            result.append(">");
+            result.write(">");
             Collections.sort(seriesList, new Comparator<Series>() {
 
                 public int compare(Series o1, Series o2) {
@@ -125,12 +142,11 @@ public class Study implements XmlDescription {
                 }
             });
             for (Series s : seriesList) {
-                result.append(s.toXml());
+                s.toXml(result);
             }
 
-            result.append("\n</Study>");
+            result.write("\n</Study>");
         }
-        return result.toString();
     }
 
     public boolean isEmpty() {
@@ -143,12 +159,7 @@ public class Study implements XmlDescription {
     }
 
     public Series getSeries(String uid) {
-        for (Series s : seriesList) {
-            if (s.getSeriesInstanceUID().equals(uid)) {
-                return s;
-            }
-        }
-        return null;
+        return seriesMap.get(uid);
     }
 
     public List<Series> getSeriesList() {
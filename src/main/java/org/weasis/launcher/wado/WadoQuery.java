@@ -10,12 +10,15 @@
  ******************************************************************************/
 package org.weasis.launcher.wado;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -34,10 +37,17 @@ public class WadoQuery {
     public static final String FILE_PREFIX = "wado_query";
     public static final String FILE_EXTENSION = ".xml.gz";
 
-    private StringBuffer wadoQuery;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final List<Patient> patients;
+    private final WadoParameters wadoParameters;
+    private final String dbCharset;
+    // Content built by toString(), returned by toString() until the model is modified
+    private String xml;
 
     /**
-     * Creates a wado query with the given patients list.
+     * Creates a wado query with the given patients list. The xml content is not built here, it is written on demand
+     * by {@link #writeXml(Writer)}, which always serializes the current state of the patients.
      * 
      * @param patients
      *            a list of patients
@@ -49,63 +59,113 @@ public class WadoQuery {
         throws WadoQueryException {
         if ((patients == null || patients.size() == 0) && !acceptNoImage) {
             throw new WadoQueryException(WadoQueryException.NO_PATIENTS_LIST);
-        } else {
-            if (patients != null) {
-                Collections.sort(patients, new Comparator<Patient>() {
-
-                    public int compare(Patient o1, Patient o2) {
-                        return o1.getPatientName().compareTo(o2.getPatientName());
-                    }
-                });
-            }
-            wadoQuery = new StringBuffer();
-            wadoQuery.append("<?xml version=\"1.0\" encoding=\"" + dbCharset + "\" ?>");
-            wadoQuery.append("\n<");
-            wadoQuery.append(WadoParameters.TAG_DOCUMENT_ROOT);
-            wadoQuery.append(WadoParameters.TAG_SCHEMA);
-            wadoQuery.append(" ");
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_URL, wadoParameters.getWadoURL(), wadoQuery);
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_WEB_LOGIN, wadoParameters.getWebLogin(), wadoQuery);
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_ONLY_SOP_UID, wadoParameters.isRequireOnlySOPInstanceUID(),
-                wadoQuery);
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_ADDITIONNAL_PARAMETERS,
-                wadoParameters.getAdditionnalParameters(), wadoQuery);
-            TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_OVERRIDE_TAGS, wadoParameters.getOverrideDicomTagsList(),
-                wadoQuery);
-            wadoQuery.append(">");
-            if (wadoParameters.getHttpTaglist() != null) {
-                for (HttpTag tag : wadoParameters.getHttpTaglist()) {
-                    wadoQuery.append("\n<");
-                    wadoQuery.append(WadoParameters.TAG_HTTP_TAG);
-                    wadoQuery.append(" key=\"");
-                    wadoQuery.append(tag.getKey());
-                    wadoQuery.append("\" value=\"");
-                    wadoQuery.append(tag.getValue());
-                    wadoQuery.append("\" />");
-                }
-            }
-            logger.debug("Xml header [{}]", wadoQuery.toString());
+        }
+        if (patients != null) {
+            Collections.sort(patients, new Comparator<Patient>() {
 
-            if (patients != null) {
-                for (int i = 0; i < patients.size(); i++) {
-                    wadoQuery.append(patients.get(i).toXml());
+                public int compare(Patient o1, Patient o2) {
+                    return o1.getPatientName().compareTo(o2.getPatientName());
                 }
+            });
+        }
+        this.patients = patients;
+        this.wadoParameters = wadoParameters;
+        this.dbCharset = dbCharset;
+    }
+
+    /**
+     * Writes the wado query to the writer, patient by patient, without building the whole document in memory. Each
+     * call serializes the current state of the patients.
+     * 
+     * @param writer
+     *            the destination of the xml content
+     * @throws IOException
+     *             if an error occurs while writing
+     */
+    public void writeXml(Writer writer) throws IOException {
+        StringBuffer header = new StringBuffer();
+        header.append("<?xml version=\"1.0\" encoding=\"" + dbCharset + "\" ?>");
+        header.append("\n<");
+        header.append(WadoParameters.TAG_DOCUMENT_ROOT);
+        header.append(WadoParameters.TAG_SCHEMA);
+        header.append(" ");
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_URL, wadoParameters.getWadoURL(), header);
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_WEB_LOGIN, wadoParameters.getWebLogin(), header);
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_ONLY_SOP_UID, wadoParameters.isRequireOnlySOPInstanceUID(),
+            header);
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_ADDITIONNAL_PARAMETERS,
+            wadoParameters.getAdditionnalParameters(), header);
+        TagUtil.addXmlAttribute(WadoParameters.TAG_WADO_OVERRIDE_TAGS, wadoParameters.getOverrideDicomTagsList(),
+            header);
+        header.append(">");
+        if (wadoParameters.getHttpTaglist() != null) {
+            for (HttpTag tag : wadoParameters.getHttpTaglist()) {
+                header.append("\n<");
+                header.append(WadoParameters.TAG_HTTP_TAG);
+                header.append(" key=\"");
+                header.append(tag.getKey());
+                header.append("\" value=\"");
+                header.append(tag.getValue());
+                header.append("\" />");
             }
+        }
+        logger.debug("Xml header [{}]", header.toString());
+        writer.write(header.toString());
 
-            wadoQuery.append("\n</");
-            wadoQuery.append(WadoParameters.TAG_DOCUMENT_ROOT);
-            wadoQuery.append(">");
+        if (patients != null) {
+            for (int i = 0; i < patients.size(); i++) {
+                patients.get(i).toXml(writer);
+            }
         }
+
+        writer.write("\n</");
+        writer.write(WadoParameters.TAG_DOCUMENT_ROOT);
+        writer.write(">");
+        writer.flush();
     }
 
     /**
-     * Returns current wado query in a string
+     * Writes the gzip compressed wado query to the output stream. The characters are encoded with the platform default
+     * charset, like <code>toString().getBytes()</code>. The stream is not closed.
+     * 
+     * @param out
+     *            the destination of the compressed content (file, servlet output stream...)
+     * @throws IOException
+     *             if an error occurs while writing
+     */
+    public void writeGzip(OutputStream out) throws IOException {
+        GZIPOutputStream gzipOut = new GZIPOutputStream(out, BUFFER_SIZE);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(gzipOut), BUFFER_SIZE);
+        writeXml(writer);
+        // Finishes writing compressed data
+        gzipOut.finish();
+    }
+
+    /**
+     * Returns current wado query in a string. The content is built on the first call and kept for the next calls of
+     * toString() only, {@link #modelChanged()} must be called when the patients are modified.
      * 
      * @return current wado query in a string
      */
     @Override
     public String toString() {
-        return wadoQuery.toString();
+        if (xml == null) {
+            StringWriter writer = new StringWriter();
+            try {
+                writeXml(writer);
+            } catch (IOException e) {
+                // Cannot happen with a StringWriter
+            }
+            xml = writer.toString();
+        }
+        return xml;
+    }
+
+    /**
+     * Discards the content kept by {@link #toString()}, the next calls serialize the modified patients.
+     */
+    public void modelChanged() {
+        xml = null;
     }
 
     /**
@@ -134,7 +194,16 @@ public class WadoQuery {
             throw new WadoQueryException(WadoQueryException.CANNOT_CREATE_TEMP_FILE);
         }
 
-        gzipCompress(new ByteArrayInputStream(wadoQuery.toString().getBytes()), tmpFile);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            writeGzip(out);
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+            throw new WadoQueryException(WadoQueryException.CANNOT_WRITE_TO_TEMP_FILE);
+        } finally {
+            FileUtil.safeClose(out);
+        }
         logger.info("Wado Query saved to temporary file: {}" + tmpFile);
         return tmpFile.getName();
     }
@@ -10,7 +10,9 @@
  ******************************************************************************/
 package org.weasis.launcher.wado.xml;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLEncoder;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
@@ -336,36 +338,112 @@ public final class EscapeChars {
         if (aText == null) {
             return null;
         }
-        if (("".equals(aText))) {
-            return "";
+        int index = indexOfXmlEscape(aText);
+        if (index < 0) {
+            // Nothing to escape, most of the values (UIDs, numbers, dates...)
+            return aText;
         }
-        final StringBuilder result = new StringBuilder();
-        final StringCharacterIterator iterator = new StringCharacterIterator(aText);
-        char c = iterator.current();
-        while (c != CharacterIterator.DONE) {
-            if (c == '<') {
-                result.append("&lt;");
-            } else if (c == '>') {
-                result.append("&gt;");
-            } else if (c == '\"') {
-                result.append("&quot;");
-            } else if (c == '\'') {
-                result.append("&#039;");
-            } else if (c == '&') {
-                result.append("&amp;");
+        final StringBuilder result = new StringBuilder(aText.length() + 16);
+        try {
+            appendXML(aText, index, result);
+        } catch (IOException e) {
+            // Cannot happen with a StringBuilder
+        }
+        return result.toString();
+    }
+
+    /**
+     * Appends the text escaped like {@link #forXML(String)} directly to the buffer, without intermediate String when
+     * there is no character to escape.
+     */
+    public static void forXML(String aText, StringBuffer result) {
+        if (aText != null) {
+            int index = indexOfXmlEscape(aText);
+            if (index < 0) {
+                result.append(aText);
+            } else {
+                try {
+                    appendXML(aText, index, result);
+                } catch (IOException e) {
+                    // Cannot happen with a StringBuffer
+                }
             }
-            // This method ensures that the output String has only valid XML unicode characters as specified by the XML
-            // 1.0
-            // standard. For reference, please see <a href="http://www.w3.org/TR/2000/REC-xml-20001006#NT-Char">
-            else if ((c == 0x9) || (c == 0xA) || (c == 0xD) || ((c >= 0x20) && (c <= 0xD7FF))
-                || ((c >= 0xE000) && (c <= 0xFFFD)) || ((c >= 0x10000) && (c <= 0x10FFFF))) {
-                // the char is not a special one
-                // add it to the result as is
-                result.append(c);
+        }
+    }
+
+    /**
+     * Writes the text escaped like {@link #forXML(String)} directly to the writer, without intermediate String.
+     */
+    public static void forXML(String aText, Writer result) throws IOException {
+        if (aText != null) {
+            int index = indexOfXmlEscape(aText);
+            if (index < 0) {
+                result.write(aText);
+            } else {
+                appendXML(aText, index, result);
             }
-            c = iterator.next();
         }
-        return result.toString();
+    }
+
+    /**
+     * @return the index of the first character which must be escaped or removed, -1 if the text can be written as is
+     */
+    private static int indexOfXmlEscape(String aText) {
+        for (int i = 0; i < aText.length(); i++) {
+            if (getXmlReplacement(aText.charAt(i)) != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void appendXML(String aText, int index, Appendable result) throws IOException {
+        int start = 0;
+        for (int i = index; i < aText.length(); i++) {
+            String replacement = getXmlReplacement(aText.charAt(i));
+            if (replacement != null) {
+                appendRange(aText, start, i, result);
+                result.append(replacement);
+                start = i + 1;
+            }
+        }
+        appendRange(aText, start, aText.length(), result);
+    }
+
+    private static void appendRange(String aText, int start, int end, Appendable result) throws IOException {
+        if (start < end) {
+            if (result instanceof Writer) {
+                // Writer.append(CharSequence, int, int) creates a substring
+                ((Writer) result).write(aText, start, end - start);
+            } else {
+                result.append(aText, start, end);
+            }
+        }
+    }
+
+    /**
+     * @return the entity of the character, an empty String when the character is not valid in XML or null when the
+     *         character is not a special one
+     */
+    private static String getXmlReplacement(char c) {
+        if (c == '<') {
+            return "&lt;";
+        } else if (c == '>') {
+            return "&gt;";
+        } else if (c == '\"') {
+            return "&quot;";
+        } else if (c == '\'') {
+            return "&#039;";
+        } else if (c == '&') {
+            return "&amp;";
+        }
+        // This method ensures that the output String has only valid XML unicode characters as specified by the XML
+        // 1.0 standard. For reference, please see <a href="http://www.w3.org/TR/2000/REC-xml-20001006#NT-Char">
+        else if ((c == 0x9) || (c == 0xA) || (c == 0xD) || ((c >= 0x20) && (c <= 0xD7FF))
+            || ((c >= 0xE000) && (c <= 0xFFFD))) {
+            return null;
+        }
+        return "";
     }
 
 /**
@@ -10,6 +10,8 @@
  ******************************************************************************/
 package org.weasis.launcher.wado.xml;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -70,7 +72,7 @@ public class TagUtil {
         if (tag != null && value != null) {
             result.append(tag.getTagName());
             result.append("=\"");
-            result.append(EscapeChars.forXML(value));
+            EscapeChars.forXML(value, result);
             result.append("\" ");
         }
     }
@@ -79,7 +81,7 @@ public class TagUtil {
         if (tag != null && value != null) {
             result.append(tag);
             result.append("=\"");
-            result.append(EscapeChars.forXML(value));
+            EscapeChars.forXML(value, result);
             result.append("\" ");
         }
     }
@@ -99,12 +101,56 @@ public class TagUtil {
             result.append("=\"");
             int size = value.size();
             for (int i = 0; i < size - 1; i++) {
-                result.append(EscapeChars.forXML(value.get(i)) + ",");
+                EscapeChars.forXML(value.get(i), result);
+                result.append(',');
             }
             if (size > 0) {
-                result.append(EscapeChars.forXML(value.get(size - 1)));
+                EscapeChars.forXML(value.get(size - 1), result);
             }
             result.append("\" ");
         }
     }
+
+    public static void addXmlAttribute(TagW tag, String value, Writer result) throws IOException {
+        if (tag != null && value != null) {
+            result.write(tag.getTagName());
+            result.write("=\"");
+            EscapeChars.forXML(value, result);
+            result.write("\" ");
+        }
+    }
+
+    public static void addXmlAttribute(String tag, String value, Writer result) throws IOException {
+        if (tag != null && value != null) {
+            result.write(tag);
+            result.write("=\"");
+            EscapeChars.forXML(value, result);
+            result.write("\" ");
+        }
+    }
+
+    public static void addXmlAttribute(String tag, Boolean value, Writer result) throws IOException {
+        if (tag != null && value != null) {
+            result.write(tag);
+            result.write("=\"");
+            result.write(value ? "true" : "false");
+            result.write("\" ");
+        }
+    }
+
+    public static void addXmlAttribute(String tag, List<String> value, Writer result) throws IOException {
+        if (tag != null && value != null) {
+            result.write(tag);
+            result.write("=\"");
+            int size = value.size();
+            for (int i = 0; i < size - 1; i++) {
+                EscapeChars.forXML(value.get(i), result);
+                result.write(',');
+            }
+            if (size > 0) {
+                EscapeChars.forXML(value.get(size - 1), result);
+            }
+            result.write("\" ");
+        }
+    }
 }
@@ -0,0 +1,47 @@
+package org.dcm4che2.tool.dcmmover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class MoveResponseImplTest {
+
+    @Test
+    public void noStoreFailure() {
+        MoveResponseImpl response = new MoveResponseImpl("1.2.3", "SRC", "DEST", false);
+        assertEquals(0, response.getNumberOfStoreFailures());
+        assertEquals("", response.getStoreFailuresDoc());
+        assertEquals(-1, response.toString().indexOf("Store Failures"));
+    }
+
+    @Test
+    public void storeFailuresAreListedWithTheirReason() {
+        MoveResponseImpl response = new MoveResponseImpl("1.2.3", "SRC", "DEST", false);
+        response.setStoreFailedReason("1.2.3.4.1", "Status: A700");
+        response.setStoreFailedReason("1.2.3.4.2", "Refused: 'out of resources' <A7xx>");
+
+        assertEquals(2, response.getNumberOfStoreFailures());
+        assertEquals("<failedStore objectUid='1.2.3.4.1' reason='Status: A700'/>"
+            + "<failedStore objectUid='1.2.3.4.2' reason='Refused: &#039;out of resources&#039; &lt;A7xx&gt;'/>",
+            response.getStoreFailuresDoc());
+        assertTrue(response.toString().indexOf("Number of Store Failures: 2") >= 0);
+    }
+
+    @Test
+    public void failedObjectOfTheSender() {
+        MovedDicomObject obj = new MovedDicomObject((List<byte[]>) null, "1.2.840.10008.1.2.1",
+            "1.2.840.10008.5.1.4.1.1.2", "1.2.3.4.1");
+        assertFalse(obj.storeFailed());
+        obj.setStoreFailedReason("Status: A700");
+        assertTrue(obj.storeFailed());
+
+        // Mapping of the STUDY_OBJECT_STORE_FAILED event in DcmMover
+        MoveResponseImpl response = new MoveResponseImpl("1.2.3", "SRC", "DEST", false);
+        response.setStoreFailedReason(obj.getInstanceUid(), obj.getStoreFailedReason());
+        assertEquals("<failedStore objectUid='1.2.3.4.1' reason='Status: A700'/>", response.getStoreFailuresDoc());
+    }
+}
@@ -0,0 +1,109 @@
+package org.dcm4che2.tool.dcmmover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReceiveBufferTest {
+
+    private ReceiveBuffer buffer;
+
+    @Before
+    public void setUp() {
+        buffer = new ReceiveBuffer();
+    }
+
+    @Test
+    public void memoryBudget() {
+        buffer.setMemoryBudget(100L);
+        assertTrue(buffer.reserveMemory(60L));
+        assertTrue(buffer.reserveMemory(40L));
+        assertFalse(buffer.reserveMemory(1L));
+        assertEquals(100L, buffer.getBytesInMemory());
+
+        buffer.releaseMemory(60L);
+        assertEquals(40L, buffer.getBytesInMemory());
+        assertTrue(buffer.reserveMemory(50L));
+        assertEquals(90L, buffer.getBytesInMemory());
+        assertEquals(100L, buffer.getPeakBytesInMemory());
+
+        buffer.setMemoryBudget(-1L);
+        assertEquals(0L, buffer.getMemoryBudget());
+        assertFalse(buffer.reserveMemory(1L));
+    }
+
+    @Test
+    public void spilledCounters() {
+        buffer.addSpilled(10L);
+        buffer.addSpilled(20L);
+        buffer.releaseSpilled(10L);
+        assertEquals(20L, buffer.getBytesSpilled());
+        assertEquals(30L, buffer.getTotalBytesSpilled());
+        assertEquals(2, buffer.getNumberOfSpilledObjects());
+
+        buffer.reset();
+        assertEquals(0L, buffer.getBytesSpilled());
+        assertEquals(0L, buffer.getTotalBytesSpilled());
+        assertEquals(0, buffer.getNumberOfSpilledObjects());
+        assertEquals(0L, buffer.getPeakBytesInMemory());
+    }
+
+    @Test(timeout = 5000L)
+    public void unlimitedDiskBudgetNeverWaits() throws InterruptedException {
+        buffer.addSpilled(Long.MAX_VALUE / 2);
+        buffer.waitForSpace();
+        assertEquals(0L, buffer.getBackPressureTime());
+    }
+
+    @Test(timeout = 5000L)
+    public void waitsUntilTheSenderReleasesSpace() throws InterruptedException {
+        buffer.setDiskBudget(100L);
+        buffer.addSpilled(100L);
+        Thread sender = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                buffer.releaseSpilled(50L);
+            }
+        };
+        sender.start();
+        buffer.waitForSpace();
+        assertEquals(50L, buffer.getBytesSpilled());
+        assertTrue(buffer.getBackPressureTime() > 0L);
+        sender.join();
+    }
+
+    @Test(timeout = 5000L)
+    public void closeWakesUpTheReception() throws InterruptedException {
+        buffer.setDiskBudget(100L);
+        buffer.addSpilled(150L);
+        Thread closer = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                buffer.close();
+            }
+        };
+        closer.start();
+        buffer.waitForSpace();
+        closer.join();
+
+        // Closed, the next objects are not delayed
+        buffer.addSpilled(100L);
+        buffer.waitForSpace();
+        assertEquals(250L, buffer.getBytesSpilled());
+    }
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeaderIndexTest {
+
+    private File dir;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("headerindex", "");
+        dir.delete();
+        assertTrue(dir.mkdirs());
+        indexFile = new File(dir, "index/headers.idx");
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = createFile(dir, "image1.dcm", 10);
+        DicomObject dcm = new BasicDicomObject();
+        dcm.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+        dcm.putString(Tag.PatientID, VR.LO, "12345");
+        dcm.putString(Tag.PatientName, VR.PN, "M\u00FCller^Hans");
+        dcm.putString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        dcm.putString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4.5");
+        dcm.putStrings(Tag.Modality, VR.CS, new String[] { "PT", "CT" });
+
+        HeaderIndex index = new HeaderIndex(indexFile);
+        index.load();
+        assertEquals(0, index.size());
+        index.put(file, dcm);
+        assertTrue(index.save());
+        assertTrue(indexFile.exists());
+        assertFalse(new File(indexFile.getPath() + ".tmp").exists());
+
+        HeaderIndex reloaded = new HeaderIndex(indexFile);
+        reloaded.load();
+        assertEquals(1, reloaded.size());
+        assertTrue(reloaded.contains(file));
+        DicomObject read = reloaded.get(file);
+        assertNotNull(read);
+        assertEquals("ISO_IR 100", read.getString(Tag.SpecificCharacterSet));
+        assertEquals("12345", read.getString(Tag.PatientID));
+        assertEquals("M\u00FCller^Hans", read.getString(Tag.PatientName));
+        assertEquals("1.2.3", read.getString(Tag.StudyInstanceUID));
+        assertEquals("1.2.3.4.5", read.getString(Tag.SOPInstanceUID));
+        assertArrayEquals(new String[] { "PT", "CT" }, read.getStrings(Tag.Modality));
+        // Not in the source object, must not be created empty
+        assertFalse(read.contains(Tag.SeriesInstanceUID));
+    }
+
+    @Test
+    public void excludedFile() throws IOException {
+        File dicomdir = createFile(dir, "DICOMDIR", 5);
+        HeaderIndex index = new HeaderIndex(indexFile);
+        index.put(dicomdir, null);
+        assertTrue(index.save());
+
+        HeaderIndex reloaded = new HeaderIndex(indexFile);
+        reloaded.load();
+        assertTrue(reloaded.contains(dicomdir));
+        assertNull(reloaded.get(dicomdir));
+    }
+
+    @Test
+    public void changedFileIsNotIndexed() throws IOException {
+        File file = createFile(dir, "image1.dcm", 10);
+        HeaderIndex index = new HeaderIndex(indexFile);
+        index.put(file, new BasicDicomObject());
+        assertTrue(index.save());
+
+        createFile(dir, "image1.dcm", 20);
+        HeaderIndex reloaded = new HeaderIndex(indexFile);
+        reloaded.load();
+        assertEquals(1, reloaded.size());
+        assertFalse(reloaded.contains(file));
+        assertNull(reloaded.get(file));
+    }
+
+    @Test
+    public void saveRemovesOnlyTheUntouchedEntriesOfTheScannedFolders() throws IOException {
+        File scan = new File(dir, "scan");
+        // Same prefix as the scanned folder but not under it
+        File sibling = new File(dir, "scan2");
+        File file1 = createFile(scan, "image1.dcm", 10);
+        File file2 = createFile(scan, "image2.dcm", 10);
+        File file3 = createFile(sibling, "image3.dcm", 10);
+
+        HeaderIndex index = new HeaderIndex(indexFile);
+        index.put(file1, null);
+        index.put(file2, null);
+        index.put(file3, null);
+        assertTrue(index.save());
+
+        // Re-scan of the folder where only the first file is still looked up
+        HeaderIndex rescan = new HeaderIndex(indexFile);
+        rescan.load();
+        assertTrue(rescan.contains(file1));
+        assertTrue(rescan.save(new File[] { scan }));
+
+        HeaderIndex reloaded = new HeaderIndex(indexFile);
+        reloaded.load();
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.contains(file1));
+        assertFalse(reloaded.contains(file2));
+        assertTrue(reloaded.contains(file3));
+        assertTrue(reloaded.save());
+
+        // The entries of the deleted files are removed whatever the scanned folders
+        assertTrue(file3.delete());
+        HeaderIndex afterDelete = new HeaderIndex(indexFile);
+        afterDelete.load();
+        assertTrue(afterDelete.save(new File[] { scan }));
+        afterDelete = new HeaderIndex(indexFile);
+        afterDelete.load();
+        assertEquals(0, afterDelete.size());
+    }
+
+    @Test
+    public void obsoleteIndexIsIgnored() throws IOException {
+        writeIndex(0x12345678, 1, 0);
+        HeaderIndex index = new HeaderIndex(indexFile);
+        index.load();
+        assertEquals(0, index.size());
+
+        // Newer format
+        writeIndex(0x57484958, 99, 0);
+        index = new HeaderIndex(indexFile);
+        index.load();
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void truncatedIndexIsIgnored() throws IOException {
+        writeIndex(0x57484958, 1, 3);
+        HeaderIndex index = new HeaderIndex(indexFile);
+        index.load();
+        assertEquals(0, index.size());
+
+        File file = createFile(dir, "image1.dcm", 10);
+        index.put(file, null);
+        assertTrue(index.save());
+        HeaderIndex reloaded = new HeaderIndex(indexFile);
+        reloaded.load();
+        assertTrue(reloaded.contains(file));
+    }
+
+    private void writeIndex(int magic, int version, int nbRecords) throws IOException {
+        indexFile.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile));
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(nbRecords);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static File createFile(File parent, String name, int size) throws IOException {
+        parent.mkdirs();
+        File file = new File(parent, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
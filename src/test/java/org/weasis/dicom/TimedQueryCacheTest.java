@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.dicom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.tool.dcmqr.DcmQR.QueryRetrieveLevel;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimedQueryCacheTest {
+
+    private static final String[] RETURN_KEYS = { "00100010", "00080020" };
+
+    private DicomNode node;
+    private QuerySession session;
+
+    @Before
+    public void setUp() {
+        node = new DicomNode("PACS", "localhost", 11112);
+        session = new QuerySession(node, null, "WEASIS");
+    }
+
+    @Test
+    public void hitAndMiss() {
+        TimedQueryCache cache = new TimedQueryCache(60000L, 10);
+        String[] matchingKeys = { "00100020", "12345" };
+        assertNull(cache.get(session, QueryRetrieveLevel.STUDY, matchingKeys, RETURN_KEYS));
+
+        List<DicomObject> result = results("1.2.3");
+        cache.put(session, QueryRetrieveLevel.STUDY, matchingKeys, RETURN_KEYS, result);
+        List<DicomObject> cached = cache.get(session, QueryRetrieveLevel.STUDY, matchingKeys, RETURN_KEYS);
+        assertNotNull(cached);
+        assertEquals(1, cached.size());
+        assertSame(result.get(0), cached.get(0));
+        // A copy, the caller can modify the list
+        assertNotSame(result, cached);
+        cached.clear();
+        assertEquals(1, cache.get(session, QueryRetrieveLevel.STUDY, matchingKeys, RETURN_KEYS).size());
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void nullResultIsNotCached() {
+        TimedQueryCache cache = new TimedQueryCache(60000L, 10);
+        String[] matchingKeys = { "00100020", "12345" };
+        cache.put(session, QueryRetrieveLevel.STUDY, matchingKeys, RETURN_KEYS, null);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void keysAreNormalized() {
+        TimedQueryCache cache = new TimedQueryCache(60000L, 10);
+        cache.put(session, QueryRetrieveLevel.STUDY, new String[] { "00100020", "12345", "00080050", "A1" },
+            RETURN_KEYS, results("1.2.3"));
+
+        // Other order and trailing spaces of the value
+        assertNotNull(cache.get(session, QueryRetrieveLevel.STUDY,
+            new String[] { "00080050", "A1", "00100020", "12345 " }, new String[] { "00080020", "00100010" }));
+        assertNull(cache.get(session, QueryRetrieveLevel.STUDY, new String[] { "00100020", "12345" }, RETURN_KEYS));
+        assertNull(cache.get(session, QueryRetrieveLevel.STUDY, new String[] { "00100020", "12345", "00080050",
+            "A2" }, RETURN_KEYS));
+        assertNull(cache.get(session, QueryRetrieveLevel.STUDY, new String[] { "00100020", "12345", "00080050",
+            "A1" }, new String[] { "00100010" }));
+
+        // Upper or lower case of the hexadecimal tag
+        cache.put(session, QueryRetrieveLevel.SERIES, new String[] { "0020000D", "1.2.3" }, RETURN_KEYS,
+            results("1.2.3"));
+        assertNotNull(cache.get(session, QueryRetrieveLevel.SERIES, new String[] { "0020000d", "1.2.3" },
+            RETURN_KEYS));
+    }
+
+    @Test
+    public void sessionAndLevelArePartOfTheKey() {
+        TimedQueryCache cache = new TimedQueryCache(60000L, 10);
+        String[] matchingKeys = { "0020000D", "1.2.3" };
+        cache.put(session, QueryRetrieveLevel.SERIES, matchingKeys, RETURN_KEYS, results("1.2.3"));
+
+        assertNotNull(cache.get(new QuerySession(new DicomNode("PACS", "localhost", 11112), null, "WEASIS"),
+            QueryRetrieveLevel.SERIES, matchingKeys, RETURN_KEYS));
+        assertNull(cache.get(session, QueryRetrieveLevel.IMAGE, matchingKeys, RETURN_KEYS));
+        assertNull(cache.get(new QuerySession(node, null, "OTHER"), QueryRetrieveLevel.SERIES, matchingKeys,
+            RETURN_KEYS));
+        assertNull(cache.get(new QuerySession(new DicomNode("PACS", "localhost", 104), null, "WEASIS"),
+            QueryRetrieveLevel.SERIES, matchingKeys, RETURN_KEYS));
+        assertNull(cache.get(new QuerySession(node, null, "WEASIS", false), QueryRetrieveLevel.SERIES,
+            matchingKeys, RETURN_KEYS));
+        QuerySession lean = new QuerySession(node, null, "WEASIS");
+        lean.setLeanQuery(true);
+        assertNull(cache.get(lean, QueryRetrieveLevel.SERIES, matchingKeys, RETURN_KEYS));
+    }
+
+    @Test
+    public void entriesExpire() throws InterruptedException {
+        TimedQueryCache cache = new TimedQueryCache(50L, 10);
+        String[] matchingKeys = { "00100020", "12345" };
+        cache.put(session, QueryRetrieveLevel.STUDY, matchingKeys, RETURN_KEYS, results("1.2.3"));
+        assertNotNull(cache.get(session, QueryRetrieveLevel.STUDY, matchingKeys, RETURN_KEYS));
+        Thread.sleep(100L);
+        assertNull(cache.get(session, QueryRetrieveLevel.STUDY, matchingKeys, RETURN_KEYS));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        TimedQueryCache cache = new TimedQueryCache(60000L, 2);
+        String[] keys1 = { "00100020", "1" };
+        String[] keys2 = { "00100020", "2" };
+        String[] keys3 = { "00100020", "3" };
+        cache.put(session, QueryRetrieveLevel.STUDY, keys1, RETURN_KEYS, results("1.1"));
+        cache.put(session, QueryRetrieveLevel.STUDY, keys2, RETURN_KEYS, results("1.2"));
+        // Access order: the first entry becomes the most recently used one
+        assertNotNull(cache.get(session, QueryRetrieveLevel.STUDY, keys1, RETURN_KEYS));
+        cache.put(session, QueryRetrieveLevel.STUDY, keys3, RETURN_KEYS, results("1.3"));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(session, QueryRetrieveLevel.STUDY, keys1, RETURN_KEYS));
+        assertNull(cache.get(session, QueryRetrieveLevel.STUDY, keys2, RETURN_KEYS));
+        assertNotNull(cache.get(session, QueryRetrieveLevel.STUDY, keys3, RETURN_KEYS));
+    }
+
+    @Test
+    public void invalidateStudy() {
+        TimedQueryCache cache = new TimedQueryCache(60000L, 10);
+        String[] byStudy = { "0020000D", "1.2.3" };
+        String[] byPatient = { "00100020", "12345" };
+        String[] other = { "00100020", "67890" };
+        cache.put(session, QueryRetrieveLevel.SERIES, byStudy, RETURN_KEYS, new ArrayList<DicomObject>());
+        cache.put(session, QueryRetrieveLevel.STUDY, byPatient, RETURN_KEYS, results("1.2.3"));
+        cache.put(session, QueryRetrieveLevel.STUDY, other, RETURN_KEYS, results("4.5.6"));
+
+        cache.invalidateStudy("1.2.3");
+        assertEquals(1, cache.size());
+        assertNull(cache.get(session, QueryRetrieveLevel.SERIES, byStudy, RETURN_KEYS));
+        assertNull(cache.get(session, QueryRetrieveLevel.STUDY, byPatient, RETURN_KEYS));
+        assertNotNull(cache.get(session, QueryRetrieveLevel.STUDY, other, RETURN_KEYS));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void relationalQueryCapability() throws InterruptedException {
+        TimedQueryCache cache = new TimedQueryCache(50L, 10);
+        assertNull(cache.getRelationalQuery(session, QueryRetrieveLevel.SERIES));
+
+        cache.putRelationalQuery(session, QueryRetrieveLevel.SERIES, false);
+        cache.putRelationalQuery(session, QueryRetrieveLevel.IMAGE, true);
+        assertEquals(Boolean.FALSE, cache.getRelationalQuery(session, QueryRetrieveLevel.SERIES));
+        assertEquals(Boolean.TRUE, cache.getRelationalQuery(session, QueryRetrieveLevel.IMAGE));
+        assertNull(cache.getRelationalQuery(new QuerySession(node, null, "OTHER"), QueryRetrieveLevel.SERIES));
+        // Not counted with the query results
+        assertEquals(0, cache.size());
+
+        Thread.sleep(100L);
+        assertNull(cache.getRelationalQuery(session, QueryRetrieveLevel.SERIES));
+
+        cache.putRelationalQuery(session, QueryRetrieveLevel.SERIES, true);
+        cache.clear();
+        assertNull(cache.getRelationalQuery(session, QueryRetrieveLevel.SERIES));
+    }
+
+    private static List<DicomObject> results(String studyInstanceUID) {
+        DicomObject dcm = new BasicDicomObject();
+        dcm.putString(Tag.StudyInstanceUID, VR.UI, studyInstanceUID);
+        List<DicomObject> list = new ArrayList<DicomObject>();
+        list.add(dcm);
+        return list;
+    }
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Nicolas Roduit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ ******************************************************************************/
+package org.weasis.launcher.wado.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class EscapeCharsTest {
+
+    private static final String[] TEXTS = { "", "1.2.840.10008.1.2.1", "Doe^John", "<a href=\"x\">O'Brien & co</a>",
+        "&&", "<", "end>", "tab\tline\nreturn\r", "bell\u0007nul\u0000", "\uFFFEnon-character\uFFFF", "\uE000\uFFFD" };
+
+    @Test
+    public void returnsSameInstanceWhenNothingToEscape() {
+        String uid = "1.2.840.113619.2.55.3.604688119.971.1320757224.1";
+        assertSame(uid, EscapeChars.forXML(uid));
+        String name = "Doe^John  Jr";
+        assertSame(name, EscapeChars.forXML(name));
+        String allowed = "tab\tline\nreturn\r\uE000\uFFFD";
+        assertSame(allowed, EscapeChars.forXML(allowed));
+    }
+
+    @Test
+    public void nullText() {
+        assertNull(EscapeChars.forXML(null));
+        StringBuffer buf = new StringBuffer("a");
+        EscapeChars.forXML(null, buf);
+        assertEquals("a", buf.toString());
+    }
+
+    @Test
+    public void escapesSpecialCharacters() {
+        assertEquals("&lt;", EscapeChars.forXML("<"));
+        assertEquals("&gt;", EscapeChars.forXML(">"));
+        assertEquals("&quot;", EscapeChars.forXML("\""));
+        assertEquals("&#039;", EscapeChars.forXML("'"));
+        assertEquals("&amp;", EscapeChars.forXML("&"));
+        assertEquals("&lt;a href=&quot;x&quot;&gt;O&#039;Brien &amp; co&lt;/a&gt;",
+            EscapeChars.forXML("<a href=\"x\">O'Brien & co</a>"));
+        assertEquals("Smith &amp; Wesson", EscapeChars.forXML("Smith & Wesson"));
+    }
+
+    @Test
+    public void removesInvalidCharacters() {
+        assertEquals("bellnul", EscapeChars.forXML("bell\u0007nul\u0000"));
+        assertEquals("non-character", EscapeChars.forXML("\uFFFEnon-character\uFFFF"));
+        assertEquals("a&lt;b", EscapeChars.forXML("a\u0001<\u001Fb"));
+    }
+
+    @Test
+    public void bufferAndWriterMatchString() throws IOException {
+        for (String text : TEXTS) {
+            String expected = EscapeChars.forXML(text);
+
+            StringBuffer buf = new StringBuffer("prefix");
+            EscapeChars.forXML(text, buf);
+            assertEquals(text, "prefix" + expected, buf.toString());
+
+            StringWriter writer = new StringWriter();
+            writer.write("prefix");
+            EscapeChars.forXML(text, writer);
+            assertEquals(text, "prefix" + expected, writer.toString());
+        }
+    }
+}